@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of configuration with large list of mod records.
+ *
+ * Configuration file is written to working directory, benchmarks are run
+ * from build directory.
+ *
+ * @author Minecart team
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ConfigurationBenchmark {
+
+    public static final String CONFIG_FILE_NAME = "minecart-updater.cfg";
+
+    private static final Logger UPDATER_LOGGER = Logger.getLogger(Updater.class.getName());
+
+    @Param({"50", "500", "5000"})
+    private int modsCount;
+
+    private Updater updater;
+
+    @Setup
+    public void setup() throws IOException {
+        UPDATER_LOGGER.setLevel(Level.OFF);
+        Properties config = new Properties();
+        for (int i = 0; i < modsCount; i++) {
+            config.setProperty("mod_" + i, "mod-" + i + ".jar");
+        }
+        writeConfiguration(config);
+
+        updater = new Updater();
+        updater.loadConfiguration();
+    }
+
+    @Benchmark
+    public Set<String> getModRecords() {
+        return updater.getModRecords();
+    }
+
+    @Benchmark
+    public void saveConfiguration() {
+        updater.saveConfiguration();
+    }
+
+    /**
+     * Replaces configuration file in working directory.
+     *
+     * @param config configuration properties
+     * @throws IOException if writing fails
+     */
+    static void writeConfiguration(Properties config) throws IOException {
+        try (OutputStream configOutput = new FileOutputStream(CONFIG_FILE_NAME)) {
+            config.store(configOutput, "Minecart Updater");
+        }
+    }
+
+    static void deleteRecursively(File directory) throws IOException {
+        Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
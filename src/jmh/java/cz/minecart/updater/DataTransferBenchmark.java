@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of copy loops used for downloads.
+ *
+ * News and lists are copied from stream to memory, mods are copied from
+ * stream or from local file to file.
+ *
+ * @author Minecart team
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DataTransferBenchmark {
+
+    @Param({"4096", "262144", "8388608"})
+    private int size;
+
+    private byte[] data;
+    private File sourceFile;
+    private File targetFile;
+
+    @Setup
+    public void setup() throws IOException {
+        data = new byte[size];
+        new Random(size).nextBytes(data);
+        sourceFile = File.createTempFile("minecart-benchmark", ".source");
+        targetFile = File.createTempFile("minecart-benchmark", ".target");
+        Files.write(sourceFile.toPath(), data);
+    }
+
+    @TearDown
+    public void tearDown() {
+        sourceFile.delete();
+        targetFile.delete();
+    }
+
+    /**
+     * Copies news content loaded from stream to memory.
+     */
+    @Benchmark
+    public byte[] streamToMemory() throws IOException {
+        try (ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(data))) {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            DataTransfer.transfer(channel, Channels.newChannel(result), null);
+            return result.toByteArray();
+        }
+    }
+
+    /**
+     * Copies downloaded mod from stream to file.
+     */
+    @Benchmark
+    public long streamToFile() throws IOException {
+        try (InputStream input = new ByteArrayInputStream(data);
+                FileChannel target = FileChannel.open(targetFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return DataTransfer.transfer(Channels.newChannel(input), target, null);
+        }
+    }
+
+    /**
+     * Copies mod from local file stream to file.
+     */
+    @Benchmark
+    public long fileStreamToFile() throws IOException {
+        try (InputStream input = new FileInputStream(sourceFile);
+                FileChannel target = FileChannel.open(targetFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return DataTransfer.transfer(Channels.newChannel(input), target, null);
+        }
+    }
+
+    /**
+     * Copies mod from local file channel to file.
+     */
+    @Benchmark
+    public long fileToFile() throws IOException {
+        try (FileChannel source = FileChannel.open(sourceFile.toPath());
+                FileChannel target = FileChannel.open(targetFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return DataTransfer.transfer(source, target, null);
+        }
+    }
+}
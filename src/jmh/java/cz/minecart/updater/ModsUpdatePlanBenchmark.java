@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of comparison of list of mods with installed mods.
+ *
+ * Every tenth mod differs from the list and every twentieth installed
+ * mod is no longer listed, so that the plan contains both downloads and
+ * deletions. Installed mods are recorded in index, so no file is hashed.
+ *
+ * @author Minecart team
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ModsUpdatePlanBenchmark {
+
+    private static final Logger UPDATER_LOGGER = Logger.getLogger(Updater.class.getName());
+
+    @Param({"50", "500", "5000"})
+    private int modsCount;
+
+    private File profileDirectory;
+    private Updater updater;
+    private Updater.ModsManifestResult manifestResult;
+    private Updater.InstalledModsResult installedModsResult;
+
+    @Setup
+    public void setup() throws IOException {
+        UPDATER_LOGGER.setLevel(Level.OFF);
+        profileDirectory = Files.createTempDirectory("minecart-benchmark").toFile();
+        File modsDirectory = new File(profileDirectory, "mods");
+        modsDirectory.mkdirs();
+
+        ModsManifest modsManifest = new ModsManifest();
+        Properties config = new Properties();
+        int recordIndex = 0;
+        for (int i = 0; i < modsCount; i++) {
+            File modFile = new File(modsDirectory, "mod-" + i + ".jar");
+            Files.write(modFile.toPath(), ("mod " + i).getBytes("UTF-8"));
+            String hash = Checksums.sha256(modFile);
+            if (i % 10 == 0) {
+                hash = Checksums.toHex(Checksums.createSha256Digest().digest(("changed " + i).getBytes("UTF-8")));
+            }
+            modsManifest.addEntry(new ModsManifest.Entry(modFile.getName(), modFile.length(), hash));
+            config.setProperty("mod_" + recordIndex++, modFile.getName());
+
+            if (i % 20 == 0) {
+                File removedFile = new File(modsDirectory, "removed-" + i + ".jar");
+                Files.write(removedFile.toPath(), ("removed " + i).getBytes("UTF-8"));
+                config.setProperty("mod_" + recordIndex++, removedFile.getName());
+            }
+        }
+        // Mod records are imported to index of main profile only
+        config.setProperty("profilePath", profileDirectory.getPath());
+        config.setProperty("profilePathAuto", Boolean.FALSE.toString());
+        ConfigurationBenchmark.writeConfiguration(config);
+
+        updater = new Updater();
+        updater.loadConfiguration();
+        manifestResult = new Updater.ModsManifestResult(modsManifest, null);
+        installedModsResult = updater.scanInstalledMods();
+        // Builds index of installed files
+        updater.computeModsUpdatePlan(manifestResult, installedModsResult);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        ConfigurationBenchmark.deleteRecursively(profileDirectory);
+    }
+
+    @Benchmark
+    public Updater.UpdatePlan computeModsUpdatePlan() {
+        return updater.computeModsUpdatePlan(manifestResult, installedModsResult);
+    }
+
+    @Benchmark
+    public Updater.UpdatePlan scanAndComputeModsUpdatePlan() {
+        return updater.computeModsUpdatePlan(manifestResult, updater.scanInstalledMods());
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of parsing and comparison of version numbers.
+ *
+ * @author Minecart team
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class VersionNumbersBenchmark {
+
+    @Param({"0.1.5", "1.12.2.2555"})
+    private String version;
+
+    private VersionNumbers currentVersion;
+    private VersionNumbers updateVersion;
+
+    @Setup
+    public void setup() {
+        currentVersion = new VersionNumbers();
+        currentVersion.versionFromString(version);
+        updateVersion = new VersionNumbers();
+        updateVersion.versionFromString(version);
+    }
+
+    @Benchmark
+    public VersionNumbers versionFromString() {
+        VersionNumbers versionNumbers = new VersionNumbers();
+        versionNumbers.versionFromString(version);
+        return versionNumbers;
+    }
+
+    @Benchmark
+    public boolean isGreaterThan() {
+        return updateVersion.isGreaterThan(currentVersion);
+    }
+}
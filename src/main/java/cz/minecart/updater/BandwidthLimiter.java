@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting transfer rate of all downloads sharing it.
+ *
+ * Bucket is refilled continuously with configured rate and holds at most
+ * one second worth of data. Reader taking more data than available goes
+ * into debt and waits until debt is repaid, so that following readers are
+ * delayed as well and total rate stays within the limit.
+ *
+ * @author Minecart team
+ */
+public class BandwidthLimiter {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long bytesPerSecond;
+    private double availableBytes;
+    private long lastRefillTime;
+
+    /**
+     * Creates limiter.
+     *
+     * @param bytesPerSecond maximum transfer rate in bytes per second
+     */
+    public BandwidthLimiter(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Transfer rate must be positive");
+        }
+
+        this.bytesPerSecond = bytesPerSecond;
+        availableBytes = bytesPerSecond;
+        lastRefillTime = System.nanoTime();
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Takes given count of bytes from the bucket, waiting if necessary.
+     *
+     * @param count count of bytes
+     * @throws InterruptedIOException if waiting was interrupted
+     */
+    public void acquire(long count) throws InterruptedIOException {
+        long waitTime = reserve(count);
+        if (waitTime > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitTime);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private synchronized long reserve(long count) {
+        long now = System.nanoTime();
+        availableBytes = Math.min(bytesPerSecond, availableBytes + (now - lastRefillTime) * (double) bytesPerSecond / NANOS_PER_SECOND);
+        lastRefillTime = now;
+        availableBytes -= count;
+
+        return availableBytes >= 0 ? 0 : (long) (-availableBytes * NANOS_PER_SECOND / bytesPerSecond);
+    }
+
+    /**
+     * Wraps channel so that reading from it is limited by this limiter.
+     *
+     * @param channel source channel
+     * @return limited channel
+     */
+    public ReadableByteChannel limit(final ReadableByteChannel channel) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer buffer) throws IOException {
+                int length = channel.read(buffer);
+                if (length > 0) {
+                    acquire(length);
+                }
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Content addressed cache of downloaded files shared by all profiles of the
+ * user.
+ *
+ * Files are stored under their SHA-256 hash. When total size of the cache
+ * exceeds the limit, least recently used files are removed. Time of last
+ * access is kept as modification time of sidecar file, so that cached files
+ * are never modified.
+ *
+ * Cached files are copied, not linked, to and from mods directories, so
+ * that changes of installed files don't affect the cache. Content of cached
+ * file is verified when it is installed.
+ *
+ * Files are not removed while they are pinned, as when they are read by
+ * other thread, and files being stored are not counted to the size of the
+ * cache.
+ *
+ * @author Minecart team
+ */
+public class BlobCache {
+
+    public static final long DEFAULT_SIZE_LIMIT = 2048L * 1024 * 1024;
+
+    private static final String ACCESS_FILE_SUFFIX = ".access";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final long STALE_TEMP_FILE_AGE = 24L * 60 * 60 * 1000;
+
+    private final File cacheDirectory;
+    private final long sizeLimit;
+    private final Map<String, Integer> pinCounts = new HashMap<>();
+
+    public BlobCache(File cacheDirectory, long sizeLimit) {
+        this.cacheDirectory = cacheDirectory;
+        this.sizeLimit = sizeLimit;
+    }
+
+    /**
+     * Returns default cache directory for current user.
+     *
+     * @param osType operating system type
+     * @return cache directory
+     */
+    public static File getDefaultDirectory(Updater.OsType osType) {
+        if (osType == Updater.OsType.WINDOWS && System.getenv("APPDATA") != null) {
+            return new File(System.getenv("APPDATA") + File.separator + "minecart-updater" + File.separator + "blobs");
+        }
+
+        return new File(System.getProperty("user.home") + File.separator + ".minecart-updater" + File.separator + "blobs");
+    }
+
+    public long getSizeLimit() {
+        return sizeLimit;
+    }
+
+    /**
+     * Prevents removal of file with given hash until it is unpinned.
+     *
+     * File doesn't need to be present in the cache yet. Each pin has to be
+     * released by unpin.
+     *
+     * @param hash SHA-256 hash of the file
+     */
+    public synchronized void pin(String hash) {
+        Integer count = pinCounts.get(hash);
+        pinCounts.put(hash, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Releases pin of file with given hash.
+     *
+     * @param hash SHA-256 hash of the file
+     */
+    public synchronized void unpin(String hash) {
+        Integer count = pinCounts.get(hash);
+        if (count == null || count <= 1) {
+            pinCounts.remove(hash);
+        } else {
+            pinCounts.put(hash, count - 1);
+        }
+    }
+
+    /**
+     * Returns cached file with given hash.
+     *
+     * File should be pinned while it is used.
+     *
+     * @param hash SHA-256 hash of the file
+     * @param size expected size or -1 if not known
+     * @return cached file or null if not present
+     */
+    public File get(String hash, long size) {
+        File blobFile = getBlobFile(hash);
+        if (!blobFile.isFile() || (size >= 0 && blobFile.length() != size)) {
+            return null;
+        }
+
+        recordAccess(blobFile);
+        return blobFile;
+    }
+
+    /**
+     * Installs copy of cached file with given hash to target location.
+     *
+     * Cached file not matching its hash is removed from the cache.
+     *
+     * @param hash SHA-256 hash of the file
+     * @param size expected size or -1 if not known
+     * @param targetFile target file
+     * @return true if file was installed from cache
+     */
+    public boolean install(String hash, long size, File targetFile) {
+        File tempFile = new File(targetFile.getPath() + TEMP_FILE_SUFFIX);
+        pin(hash);
+        try {
+            File blobFile = get(hash, size);
+            if (blobFile == null) {
+                return false;
+            }
+
+            if (!hash.equals(copyFile(blobFile, tempFile))) {
+                Logger.getLogger(BlobCache.class.getName()).log(Level.WARNING, "Removed corrupted cached file {0}", blobFile);
+                remove(blobFile);
+                return false;
+            }
+
+            Files.move(tempFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException ex) {
+            Logger.getLogger(BlobCache.class.getName()).log(Level.WARNING, null, ex);
+            return false;
+        } finally {
+            tempFile.delete();
+            unpin(hash);
+        }
+    }
+
+    /**
+     * Stores copy of the file in the cache.
+     *
+     * @param hash SHA-256 hash of the file
+     * @param sourceFile source file
+     * @throws IOException if storing fails or file doesn't match the hash
+     */
+    public void put(String hash, File sourceFile) throws IOException {
+        File blobFile = getBlobFile(hash);
+        if (blobFile.isFile() && blobFile.length() == sourceFile.length()) {
+            recordAccess(blobFile);
+            return;
+        }
+
+        File blobDirectory = blobFile.getParentFile();
+        Files.createDirectories(blobDirectory.toPath());
+        File tempFile = new File(blobDirectory, hash + "." + Thread.currentThread().getId() + TEMP_FILE_SUFFIX);
+        try {
+            String fileHash = copyFile(sourceFile, tempFile);
+            if (!hash.equals(fileHash)) {
+                throw new IOException("File " + sourceFile + " doesn't match hash " + hash);
+            }
+            try {
+                Files.move(tempFile.toPath(), blobFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tempFile.toPath(), blobFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            recordAccess(blobFile);
+        } finally {
+            tempFile.delete();
+        }
+
+        evict();
+    }
+
+    /**
+     * Removes least recently used files until cache fits the size limit.
+     *
+     * Pinned files and files being stored are skipped, temporary files left
+     * by interrupted store are removed.
+     */
+    public synchronized void evict() {
+        List<File> blobFiles = new ArrayList<>();
+        final Map<File, Long> accessTimes = new HashMap<>();
+        long totalSize = 0;
+        File[] blobDirectories = cacheDirectory.listFiles();
+        if (blobDirectories == null) {
+            return;
+        }
+
+        for (File blobDirectory : blobDirectories) {
+            File[] files = blobDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String fileName = file.getName();
+                    if (fileName.endsWith(ACCESS_FILE_SUFFIX)) {
+                        continue;
+                    }
+                    if (fileName.endsWith(TEMP_FILE_SUFFIX)) {
+                        if (System.currentTimeMillis() - file.lastModified() > STALE_TEMP_FILE_AGE) {
+                            file.delete();
+                        }
+                        continue;
+                    }
+                    totalSize += file.length();
+                    if (!pinCounts.containsKey(fileName)) {
+                        blobFiles.add(file);
+                        accessTimes.put(file, getAccessTime(file));
+                    }
+                }
+            }
+        }
+
+        if (totalSize <= sizeLimit) {
+            return;
+        }
+
+        Collections.sort(blobFiles, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                long accessTime1 = accessTimes.get(file1);
+                long accessTime2 = accessTimes.get(file2);
+                return accessTime1 < accessTime2 ? -1 : (accessTime1 == accessTime2 ? 0 : 1);
+            }
+        });
+
+        for (File file : blobFiles) {
+            if (totalSize <= sizeLimit) {
+                break;
+            }
+
+            long fileSize = file.length();
+            if (remove(file)) {
+                totalSize -= fileSize;
+            }
+        }
+    }
+
+    private File getBlobFile(String hash) {
+        return new File(cacheDirectory, hash.substring(0, 2) + File.separator + hash);
+    }
+
+    private static File getAccessFile(File blobFile) {
+        return new File(blobFile.getPath() + ACCESS_FILE_SUFFIX);
+    }
+
+    /**
+     * Records time of access to cached file to its sidecar file.
+     */
+    private static void recordAccess(File blobFile) {
+        File accessFile = getAccessFile(blobFile);
+        try {
+            if (!accessFile.createNewFile()) {
+                accessFile.setLastModified(System.currentTimeMillis());
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(BlobCache.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    private static long getAccessTime(File blobFile) {
+        File accessFile = getAccessFile(blobFile);
+        return accessFile.isFile() ? accessFile.lastModified() : blobFile.lastModified();
+    }
+
+    private static boolean remove(File blobFile) {
+        boolean removed = blobFile.delete();
+        getAccessFile(blobFile).delete();
+        return removed;
+    }
+
+    /**
+     * Copies file, computing its hash.
+     *
+     * @return SHA-256 hash of copied data
+     */
+    private static String copyFile(File sourceFile, File targetFile) throws IOException {
+        MessageDigest digest = Checksums.createSha256Digest();
+        try (ReadableByteChannel sourceChannel = Channels.newChannel(new DigestInputStream(new FileInputStream(sourceFile), digest));
+                FileChannel targetChannel = new FileOutputStream(targetFile).getChannel()) {
+            DataTransfer.transfer(sourceChannel, targetChannel, null);
+        }
+
+        return Checksums.toHex(digest.digest());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Utility methods for file checksums.
+ *
+ * @author Minecart team
+ */
+public class Checksums {
+
+    public static final String SHA_256 = "SHA-256";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private Checksums() {
+    }
+
+    public static MessageDigest createSha256Digest() {
+        try {
+            return MessageDigest.getInstance(SHA_256);
+        } catch (NoSuchAlgorithmException ex) {
+            // SHA-256 is required to be supported by every Java platform
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Computes SHA-256 hash of the file.
+     *
+     * @param file file
+     * @return lower case hexadecimal hash
+     * @throws IOException if reading fails
+     */
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest = createSha256Digest();
+        update(digest, file);
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Updates digest with content of the file.
+     *
+     * @param digest message digest
+     * @param file file
+     * @throws IOException if reading fails
+     */
+    public static void update(MessageDigest digest, File file) throws IOException {
+        try (InputStream stream = new FileInputStream(file)) {
+            byte[] buffer = new byte[65536];
+            int length;
+            while ((length = stream.read(buffer)) >= 0) {
+                digest.update(buffer, 0, length);
+            }
+        }
+    }
+
+    public static String toHex(byte[] data) {
+        char[] result = new char[data.length * 2];
+        for (int i = 0; i < data.length; i++) {
+            result[i * 2] = HEX_DIGITS[(data[i] >> 4) & 0xf];
+            result[i * 2 + 1] = HEX_DIGITS[data[i] & 0xf];
+        }
+
+        return new String(result);
+    }
+}
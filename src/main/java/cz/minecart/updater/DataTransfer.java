@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Data transfer between channels.
+ *
+ * Transfer to file channel is performed by the channel itself when possible,
+ * otherwise data are copied using direct buffer reused per thread.
+ *
+ * @author Minecart team
+ */
+public class DataTransfer {
+
+    public static final int BUFFER_SIZE = 128 * 1024;
+    private static final long FILE_TRANSFER_CHUNK_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> TRANSFER_BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    private DataTransfer() {
+    }
+
+    /**
+     * Transfers all data from source channel to the current position of the
+     * target file channel.
+     *
+     * @param source source channel
+     * @param target target file channel
+     * @param listener transfer listener or null
+     * @return count of transferred bytes
+     * @throws IOException if transfer fails
+     */
+    public static long transfer(ReadableByteChannel source, FileChannel target, TransferListener listener) throws IOException {
+        if (!(source instanceof FileChannel)) {
+            return transfer(source, (WritableByteChannel) target, listener);
+        }
+
+        long position = target.position();
+        long total = 0;
+        long count;
+        do {
+            checkInterrupted();
+            count = target.transferFrom(source, position + total, FILE_TRANSFER_CHUNK_SIZE);
+            if (count > 0) {
+                total += count;
+                if (listener != null) {
+                    listener.bytesTransferred(count);
+                }
+            }
+        } while (count > 0);
+
+        target.position(position + total);
+        return total;
+    }
+
+    /**
+     * Transfers all data from source channel to target channel.
+     *
+     * @param source source channel
+     * @param target target channel
+     * @param listener transfer listener or null
+     * @return count of transferred bytes
+     * @throws WriteException if writing to target channel fails
+     * @throws IOException if transfer fails
+     */
+    public static long transfer(ReadableByteChannel source, WritableByteChannel target, TransferListener listener) throws IOException {
+        ByteBuffer buffer = TRANSFER_BUFFER.get();
+        buffer.clear();
+        long total = 0;
+        int count;
+        while ((count = source.read(buffer)) >= 0) {
+            checkInterrupted();
+            if (count == 0 && buffer.position() == 0) {
+                continue;
+            }
+
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+            } catch (IOException ex) {
+                throw new WriteException(ex);
+            }
+            buffer.clear();
+            total += count;
+            if (listener != null && count > 0) {
+                listener.bytesTransferred(count);
+            }
+        }
+
+        return total;
+    }
+
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Exception for failure of writing to target channel, as opposed to
+     * failure of reading from source.
+     */
+    public static class WriteException extends IOException {
+
+        public WriteException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    public static interface TransferListener {
+
+        /**
+         * Reports transferred chunk of data.
+         *
+         * @param count count of bytes transferred since previous report
+         */
+        void bytesTransferred(long count);
+    }
+}
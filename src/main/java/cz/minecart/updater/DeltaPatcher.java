@@ -0,0 +1,230 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Applies binary delta to the file.
+ *
+ * Delta uses bsdiff 4 layout with gzip compression of blocks instead of
+ * bzip2: 8 bytes magic "MCDIFF40", 8 bytes length of compressed control
+ * block, 8 bytes length of compressed diff block, 8 bytes size of new file,
+ * followed by control, diff and extra blocks. Numbers are stored in bsdiff
+ * sign-magnitude little endian format.
+ *
+ * @author Minecart team
+ */
+public class DeltaPatcher {
+
+    public static final String MAGIC = "MCDIFF40";
+
+    private static final int HEADER_SIZE = 32;
+    private static final int BUFFER_SIZE = 65536;
+
+    private DeltaPatcher() {
+    }
+
+    /**
+     * Creates new file from old file and delta.
+     *
+     * @param oldFile old file
+     * @param deltaFile delta file
+     * @param newFile new file
+     * @return SHA-256 hash of the new file
+     * @throws IOException if delta is invalid or operation fails
+     */
+    public static String apply(File oldFile, File deltaFile, File newFile) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        try (DataInputStream headerInput = new DataInputStream(new FileInputStream(deltaFile))) {
+            headerInput.readFully(header);
+        } catch (EOFException ex) {
+            throw new IOException("Delta file is too short");
+        }
+
+        if (!MAGIC.equals(new String(header, 0, MAGIC.length(), "US-ASCII"))) {
+            throw new IOException("Invalid delta file header");
+        }
+
+        long controlLength = readOffset(header, 8);
+        long diffLength = readOffset(header, 16);
+        long newSize = readOffset(header, 24);
+        if (controlLength < 0 || diffLength < 0 || newSize < 0 || HEADER_SIZE + controlLength + diffLength > deltaFile.length()) {
+            throw new IOException("Corrupted delta file");
+        }
+
+        MessageDigest digest = Checksums.createSha256Digest();
+        try (DataInputStream controlInput = new DataInputStream(openBlock(deltaFile, HEADER_SIZE, controlLength));
+                InputStream diffInput = openBlock(deltaFile, HEADER_SIZE + controlLength, diffLength);
+                InputStream extraInput = openBlock(deltaFile, HEADER_SIZE + controlLength + diffLength, deltaFile.length() - HEADER_SIZE - controlLength - diffLength);
+                RandomAccessFile oldInput = new RandomAccessFile(oldFile, "r");
+                OutputStream newOutput = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(newFile), BUFFER_SIZE), digest)) {
+            long oldSize = oldInput.length();
+            byte[] control = new byte[24];
+            byte[] diffBuffer = new byte[BUFFER_SIZE];
+            byte[] oldBuffer = new byte[BUFFER_SIZE];
+            long newPosition = 0;
+            long oldPosition = 0;
+            while (newPosition < newSize) {
+                controlInput.readFully(control);
+                long diffCount = readOffset(control, 0);
+                long extraCount = readOffset(control, 8);
+                long oldSeek = readOffset(control, 16);
+                if (diffCount < 0 || extraCount < 0 || newPosition + diffCount + extraCount > newSize) {
+                    throw new IOException("Corrupted delta file");
+                }
+
+                // Add old data to diff data
+                long remaining = diffCount;
+                while (remaining > 0) {
+                    int length = (int) Math.min(remaining, BUFFER_SIZE);
+                    readFully(diffInput, diffBuffer, length);
+                    int oldLength = 0;
+                    int oldOffset = 0;
+                    if (oldPosition < 0) {
+                        oldOffset = (int) Math.min(-oldPosition, length);
+                    }
+                    if (oldOffset < length && oldPosition + oldOffset < oldSize) {
+                        oldLength = (int) Math.min(length - oldOffset, oldSize - oldPosition - oldOffset);
+                        oldInput.seek(oldPosition + oldOffset);
+                        oldInput.readFully(oldBuffer, 0, oldLength);
+                    }
+                    for (int i = 0; i < oldLength; i++) {
+                        diffBuffer[oldOffset + i] += oldBuffer[i];
+                    }
+                    newOutput.write(diffBuffer, 0, length);
+                    remaining -= length;
+                    oldPosition += length;
+                }
+
+                // Copy extra data
+                remaining = extraCount;
+                while (remaining > 0) {
+                    int length = (int) Math.min(remaining, BUFFER_SIZE);
+                    readFully(extraInput, diffBuffer, length);
+                    newOutput.write(diffBuffer, 0, length);
+                    remaining -= length;
+                }
+
+                newPosition += diffCount + extraCount;
+                oldPosition += oldSeek;
+            }
+        } catch (EOFException ex) {
+            newFile.delete();
+            throw new IOException("Corrupted delta file", ex);
+        } catch (IOException ex) {
+            newFile.delete();
+            throw ex;
+        }
+
+        return Checksums.toHex(digest.digest());
+    }
+
+    private static InputStream openBlock(File deltaFile, long offset, long length) throws IOException {
+        FileInputStream input = new FileInputStream(deltaFile);
+        try {
+            input.getChannel().position(offset);
+            return new GZIPInputStream(new BoundedInputStream(input, length), BUFFER_SIZE);
+        } catch (IOException ex) {
+            input.close();
+            throw ex;
+        }
+    }
+
+    private static void readFully(InputStream input, byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int count = input.read(buffer, offset, length - offset);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            offset += count;
+        }
+    }
+
+    private static long readOffset(byte[] data, int offset) {
+        long value = data[offset + 7] & 0x7f;
+        for (int i = 6; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xff);
+        }
+
+        return (data[offset + 7] & 0x80) != 0 ? -value : value;
+    }
+
+    /**
+     * Input stream limited to given count of bytes.
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        public BoundedInputStream(InputStream input, long length) {
+            super(input);
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int value = super.read();
+            if (value >= 0) {
+                remaining--;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int count = super.read(buffer, offset, (int) Math.min(length, remaining));
+            if (count > 0) {
+                remaining -= count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(Math.min(count, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+    }
+}
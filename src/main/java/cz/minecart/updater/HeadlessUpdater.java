@@ -0,0 +1,296 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Updater running without user interface.
+ *
+ * Progress is printed to standard output as lines of space separated
+ * values starting with record type. Log messages are printed to standard
+ * error output. Result is returned as process exit code.
+ *
+ * @author Minecart team
+ */
+public class HeadlessUpdater {
+
+    public static final String HEADLESS_OPTION = "--headless";
+    public static final String LAUNCH_OPTION = "--launch";
+    public static final String TARGET_OPTION = "--target";
+    public static final String LAN_CACHE_OPTION = "--lan-cache";
+
+    public static final int EXIT_OK = 0;
+    public static final int EXIT_INVALID_ARGUMENTS = 1;
+    public static final int EXIT_APP_UPDATE_AVAILABLE = 2;
+    public static final int EXIT_CONNECTION_ISSUE = 3;
+    public static final int EXIT_NOT_FOUND = 4;
+    public static final int EXIT_PROFILE_NOT_FOUND = 5;
+    public static final int EXIT_DOWNLOAD_ERROR = 6;
+    public static final int EXIT_INSTALL_ERROR = 7;
+    public static final int EXIT_LAUNCH_ERROR = 8;
+    public static final int EXIT_UNKNOWN_ERROR = 9;
+    public static final int EXIT_LAN_CACHE_ERROR = 10;
+
+    private final PrintStream output;
+    private boolean launch = false;
+    private boolean lanCache = false;
+    private final List<String> profileTargets = new ArrayList<>();
+
+    public HeadlessUpdater(PrintStream output) {
+        this.output = output;
+    }
+
+    /**
+     * Returns true if arguments request headless mode.
+     *
+     * @param args command line arguments
+     * @return true for headless mode
+     */
+    public static boolean isHeadless(String[] args) {
+        for (String arg : args) {
+            if (HEADLESS_OPTION.equals(arg)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Runs update.
+     *
+     * @param args command line arguments
+     * @return exit code
+     */
+    public int run(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (LAUNCH_OPTION.equals(arg)) {
+                launch = true;
+            } else if (LAN_CACHE_OPTION.equals(arg)) {
+                lanCache = true;
+            } else if (TARGET_OPTION.equals(arg) && i + 1 < args.length) {
+                i++;
+                profileTargets.add(args[i]);
+            } else if (!HEADLESS_OPTION.equals(arg)) {
+                output.println("error invalid-argument " + arg);
+                output.println("usage " + HEADLESS_OPTION + " [" + LAUNCH_OPTION + "] [" + TARGET_OPTION + " <profile directory>]... | " + HEADLESS_OPTION + " " + LAN_CACHE_OPTION);
+                return EXIT_INVALID_ARGUMENTS;
+            }
+        }
+
+        Updater updater = new Updater();
+        updater.init();
+        updater.loadServerConfiguration();
+        if (lanCache) {
+            return serveLanCache(updater);
+        }
+
+        try {
+            return update(updater);
+        } finally {
+            updater.writeMetricsReport();
+        }
+    }
+
+    private int update(Updater updater) {
+        Updater.CheckAppUpdateResult appUpdate = updater.checkForAppUpdate();
+        output.println("app " + appUpdate.name());
+        switch (appUpdate) {
+            case NO_UPDATE_AVAILABLE: {
+                break;
+            }
+            case UPDATE_FOUND: {
+                return EXIT_APP_UPDATE_AVAILABLE;
+            }
+            case NOT_FOUND: {
+                return EXIT_NOT_FOUND;
+            }
+            case NO_CONNECTION:
+            case CONNECTION_ISSUE: {
+                return EXIT_CONNECTION_ISSUE;
+            }
+            default: {
+                return EXIT_UNKNOWN_ERROR;
+            }
+        }
+
+        if (profileTargets.isEmpty()) {
+            profileTargets.addAll(updater.getProfileTargets());
+        }
+        int exitCode = profileTargets.isEmpty() ? updateProfile(updater) : updateProfileTargets(updater);
+        if (exitCode != EXIT_OK) {
+            return exitCode;
+        }
+
+        updater.saveConfiguration();
+
+        if (launch) {
+            String runCommand = updater.getRunCommand();
+            if (runCommand != null && !runCommand.isEmpty()) {
+                try {
+                    Runtime.getRuntime().exec(runCommand);
+                    output.println("launched " + runCommand);
+                } catch (IOException ex) {
+                    Logger.getLogger(HeadlessUpdater.class.getName()).log(Level.SEVERE, null, ex);
+                    return EXIT_LAUNCH_ERROR;
+                }
+            }
+        }
+
+        return EXIT_OK;
+    }
+
+    /**
+     * Serves local network cache until process is terminated.
+     */
+    private int serveLanCache(Updater updater) {
+        LanCacheServer server;
+        try {
+            server = updater.startLanCacheServer();
+        } catch (IOException ex) {
+            Logger.getLogger(HeadlessUpdater.class.getName()).log(Level.SEVERE, null, ex);
+            return EXIT_LAN_CACHE_ERROR;
+        }
+
+        output.println("serving " + server.getPort());
+        try {
+            while (true) {
+                Thread.sleep(Long.MAX_VALUE);
+            }
+        } catch (InterruptedException ex) {
+            updater.stopLanCacheServer();
+            return EXIT_OK;
+        }
+    }
+
+    private int updateProfile(Updater updater) {
+        Updater.UpdatePlan updatePlan = updater.checkForModsUpdate();
+        if (updatePlan.resultType == Updater.CheckModsUpdateResult.UPDATE_FOUND) {
+            output.println("plan " + updatePlan.resultType.name() + " " + updatePlan.downloadMods.size() + " " + updatePlan.deleteMods.size());
+        } else {
+            output.println("plan " + updatePlan.resultType.name());
+        }
+        switch (updatePlan.resultType) {
+            case UPDATE_FOUND: {
+                Updater.ModsUpdateResult modsUpdateResult = updater.performModsUpdate(updatePlan, new OutputObserver());
+                output.println("result " + modsUpdateResult.name());
+                if (updatePlan.failedMods != null) {
+                    for (String mod : updatePlan.failedMods) {
+                        output.println("failed " + mod);
+                    }
+                }
+                return getExitCode(modsUpdateResult);
+            }
+            default: {
+                return getExitCode(updatePlan);
+            }
+        }
+    }
+
+    private int updateProfileTargets(Updater updater) {
+        List<Updater.ProfileTargetResult> results = updater.performProfileTargetsUpdate(profileTargets, new OutputObserver());
+        int exitCode = EXIT_OK;
+        for (Updater.ProfileTargetResult result : results) {
+            int targetExitCode;
+            if (result.modsUpdateResult != null) {
+                output.println("target " + result.modsUpdateResult.name() + " " + result.profilePath);
+                targetExitCode = getExitCode(result.modsUpdateResult);
+            } else {
+                output.println("target " + result.updatePlan.resultType.name() + " " + result.profilePath);
+                targetExitCode = getExitCode(result.updatePlan);
+            }
+            if (exitCode == EXIT_OK) {
+                exitCode = targetExitCode;
+            }
+        }
+
+        return exitCode;
+    }
+
+    private static int getExitCode(Updater.ModsUpdateResult modsUpdateResult) {
+        switch (modsUpdateResult) {
+            case UPDATE_OK: {
+                return EXIT_OK;
+            }
+            case DOWNLOAD_ERROR: {
+                return EXIT_DOWNLOAD_ERROR;
+            }
+            case INSTALL_ERROR: {
+                return EXIT_INSTALL_ERROR;
+            }
+            default: {
+                return EXIT_UNKNOWN_ERROR;
+            }
+        }
+    }
+
+    private int getExitCode(Updater.UpdatePlan updatePlan) {
+        switch (updatePlan.resultType) {
+            case NO_UPDATE_AVAILABLE: {
+                return EXIT_OK;
+            }
+            case NOT_FOUND: {
+                return EXIT_NOT_FOUND;
+            }
+            case NO_CONNECTION:
+            case CONNECTION_ISSUE: {
+                return EXIT_CONNECTION_ISSUE;
+            }
+            case NO_TARGET_DIRECTORY:
+            case NO_TARGET_MOD_DIRECTORY: {
+                if (updatePlan.errorMessage != null) {
+                    output.println("error " + updatePlan.errorMessage);
+                }
+                return EXIT_PROFILE_NOT_FOUND;
+            }
+            default: {
+                return EXIT_UNKNOWN_ERROR;
+            }
+        }
+    }
+
+    /**
+     * Prints progress of mods update.
+     */
+    private class OutputObserver implements Updater.TransferProgressObserver {
+
+        @Override
+        public void reportProgress(boolean indeterminate, int progress) {
+            if (indeterminate) {
+                output.println("installing");
+            } else {
+                output.println("progress " + progress);
+            }
+        }
+
+        @Override
+        public void reportTransferProgress(TransferProgress progress) {
+            output.println("transfer " + progress.getTransferredBytes() + " " + progress.getExpectedBytes() + " " + progress.getBytesPerSecond() + " " + progress.getRemainingSeconds());
+        }
+
+        @Override
+        public void reportFileState(String file, TransferProgress.FileState state) {
+            output.println("file " + state.name() + " " + file);
+        }
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * HTTP client shared by all requests of the updater.
+ *
+ * Connections are kept alive and reused by the runtime, as long as response
+ * bodies are closed. Count of concurrent requests per host is limited and
+ * compressed transport is requested unless request specifies its own
+ * encoding.
+ *
+ * Count of idle connections kept by the runtime is process wide setting
+ * given by system property http.maxConnections. It is read on first
+ * connection, so it is set on start of the application.
+ *
+ * @author Minecart team
+ */
+public class HttpClient {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_READ_TIMEOUT = 30000;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 6;
+    public static final String KEEP_ALIVE_CONNECTIONS_PROPERTY = "http.maxConnections";
+
+    private static final int ERROR_BODY_DRAIN_LIMIT = 65536;
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int maxConnectionsPerHost;
+    private final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+    public HttpClient() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    }
+
+    public HttpClient(int connectTimeout, int readTimeout, int maxConnectionsPerHost) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+    }
+
+    /**
+     * Performs GET request.
+     *
+     * @param url URL
+     * @return response, must be closed
+     * @throws IOException if request fails
+     */
+    public Response get(URL url) throws IOException {
+        return get(url, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Performs GET request.
+     *
+     * @param url URL
+     * @param requestHeaders additional request headers
+     * @return response, must be closed
+     * @throws IOException if request fails
+     */
+    public Response get(URL url, Map<String, String> requestHeaders) throws IOException {
+        return request("GET", url, requestHeaders);
+    }
+
+    /**
+     * Performs HEAD request.
+     *
+     * @param url URL
+     * @return response, must be closed
+     * @throws IOException if request fails
+     */
+    public Response head(URL url) throws IOException {
+        return request("HEAD", url, Collections.<String, String>emptyMap());
+    }
+
+    private Response request(String method, URL url, Map<String, String> requestHeaders) throws IOException {
+        Semaphore permit = getHostPermit(url);
+        try {
+            permit.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        try {
+            URLConnection connection = url.openConnection();
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            connection.setUseCaches(false);
+            if (connection instanceof HttpURLConnection) {
+                HttpURLConnection httpConnection = (HttpURLConnection) connection;
+                httpConnection.setRequestMethod(method);
+                httpConnection.setInstanceFollowRedirects(true);
+                HttpCompression.requestCompression(connection);
+            }
+            for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            Response response = new Response(connection, permit);
+            response.connect();
+            return response;
+        } catch (IOException | RuntimeException ex) {
+            permit.release();
+            throw ex;
+        }
+    }
+
+    private Semaphore getHostPermit(URL url) {
+        String host = url.getHost() + ":" + url.getPort();
+        Semaphore permit = hostPermits.get(host);
+        if (permit == null) {
+            permit = new Semaphore(maxConnectionsPerHost, true);
+            Semaphore existingPermit = hostPermits.putIfAbsent(host, permit);
+            if (existingPermit != null) {
+                permit = existingPermit;
+            }
+        }
+
+        return permit;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * Response of HTTP request.
+     *
+     * Closing the response returns connection to keep-alive pool and
+     * releases host permit.
+     */
+    public static class Response implements Closeable {
+
+        private final URLConnection connection;
+        private final Semaphore permit;
+        private int responseCode = HttpURLConnection.HTTP_OK;
+        private InputStream decodedStream = null;
+        private InputStream body = null;
+        private boolean closed = false;
+
+        private Response(URLConnection connection, Semaphore permit) {
+            this.connection = connection;
+            this.permit = permit;
+        }
+
+        private void connect() throws IOException {
+            if (connection instanceof HttpURLConnection) {
+                responseCode = ((HttpURLConnection) connection).getResponseCode();
+            } else {
+                connection.connect();
+            }
+        }
+
+        public URL getUrl() {
+            return connection.getURL();
+        }
+
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        public boolean isSuccessful() {
+            return responseCode >= HttpURLConnection.HTTP_OK && responseCode < HttpURLConnection.HTTP_MULT_CHOICE;
+        }
+
+        public String getHeaderField(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        public long getLastModified() {
+            return connection.getLastModified();
+        }
+
+        /**
+         * Returns delay requested by Retry-After header.
+         *
+         * @return delay in milliseconds or -1 if not specified
+         */
+        public long getRetryAfter() {
+            String retryAfter = connection.getHeaderField("Retry-After");
+            if (retryAfter == null) {
+                return -1;
+            }
+
+            retryAfter = retryAfter.trim();
+            try {
+                return Math.max(0, Long.parseLong(retryAfter) * 1000);
+            } catch (NumberFormatException ex) {
+                // Value can be also HTTP date
+            }
+
+            SimpleDateFormat dateFormat = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+            dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                return Math.max(0, dateFormat.parse(retryAfter).getTime() - System.currentTimeMillis());
+            } catch (ParseException ex) {
+                return -1;
+            }
+        }
+
+        /**
+         * Returns length of the body as transferred.
+         *
+         * @return length in bytes or -1 if not known or compressed
+         */
+        public long getContentLength() {
+            if (HttpCompression.isCompressed(connection)) {
+                return -1;
+            }
+
+            String contentLength = connection.getHeaderField("Content-Length");
+            if (contentLength == null) {
+                return -1;
+            }
+
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException ex) {
+                return -1;
+            }
+        }
+
+        /**
+         * Returns decoded body of successful response.
+         *
+         * Closing of returned stream closes the response. End of body
+         * shorter than its declared length is reported as failure, as
+         * connection doesn't report it.
+         *
+         * @return input stream
+         * @throws IOException if reading fails
+         */
+        public InputStream getBody() throws IOException {
+            if (body == null) {
+                decodedStream = HttpCompression.getDecodedStream(connection);
+                final long contentLength = getContentLength();
+                body = new FilterInputStream(decodedStream) {
+                    private long remaining = contentLength;
+
+                    @Override
+                    public int read() throws IOException {
+                        int value = super.read();
+                        countRead(value < 0 ? -1 : 1);
+                        return value;
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int length) throws IOException {
+                        int count = super.read(buffer, offset, length);
+                        countRead(length == 0 ? 0 : count);
+                        return count;
+                    }
+
+                    @Override
+                    public long skip(long count) throws IOException {
+                        long skipped = super.skip(count);
+                        remaining -= skipped;
+                        return skipped;
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        Response.this.close();
+                    }
+
+                    private void countRead(int count) throws IOException {
+                        if (count >= 0) {
+                            remaining -= count;
+                        } else if (remaining > 0) {
+                            throw new EOFException("Response body ended " + remaining + " bytes early: " + getUrl());
+                        }
+                    }
+                };
+            }
+
+            return body;
+        }
+
+        /**
+         * Throws exception if response is not successful.
+         *
+         * @throws IOException describing the failure
+         */
+        public void checkSuccessful() throws IOException {
+            if (responseCode == HttpURLConnection.HTTP_NOT_FOUND || responseCode == HttpURLConnection.HTTP_GONE) {
+                throw new FileNotFoundException(getUrl().toString());
+            }
+            if (!isSuccessful()) {
+                throw new HttpStatusException(responseCode, getUrl(), getRetryAfter());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            try {
+                if (decodedStream != null) {
+                    decodedStream.close();
+                } else {
+                    closeStream(connection, !isSuccessful());
+                }
+            } finally {
+                permit.release();
+            }
+        }
+
+        private static void closeStream(URLConnection connection, boolean errorResponse) throws IOException {
+            if (!(connection instanceof HttpURLConnection)) {
+                connection.getInputStream().close();
+                return;
+            }
+
+            HttpURLConnection httpConnection = (HttpURLConnection) connection;
+            InputStream stream = errorResponse ? httpConnection.getErrorStream() : httpConnection.getInputStream();
+            if (stream == null) {
+                return;
+            }
+
+            try {
+                // Small remainder is read so that connection can be reused
+                byte[] buffer = new byte[4096];
+                int drained = 0;
+                int length;
+                while (drained < ERROR_BODY_DRAIN_LIMIT && stream.available() > 0 && (length = stream.read(buffer)) >= 0) {
+                    drained += length;
+                }
+            } finally {
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * Exception for unsuccessful HTTP response.
+     */
+    public static class HttpStatusException extends IOException {
+
+        private final int responseCode;
+        private final long retryAfter;
+
+        public HttpStatusException(int responseCode, URL url) {
+            this(responseCode, url, -1);
+        }
+
+        public HttpStatusException(int responseCode, URL url, long retryAfter) {
+            super("Server returned HTTP response code " + responseCode + " for URL: " + url);
+            this.responseCode = responseCode;
+            this.retryAfter = retryAfter;
+        }
+
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        /**
+         * Returns delay requested by server before next request.
+         *
+         * @return delay in milliseconds or -1 if not specified
+         */
+        public long getRetryAfter() {
+            return retryAfter;
+        }
+    }
+}
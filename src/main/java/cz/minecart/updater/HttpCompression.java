@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Negotiation and decoding of compressed HTTP transport.
+ *
+ * @author Minecart team
+ */
+public class HttpCompression {
+
+    public static final String GZIP_ENCODING = "gzip";
+    public static final String IDENTITY_ENCODING = "identity";
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private HttpCompression() {
+    }
+
+    /**
+     * Requests compressed transport of the response.
+     *
+     * @param connection connection not yet connected
+     */
+    public static void requestCompression(URLConnection connection) {
+        connection.setRequestProperty("Accept-Encoding", GZIP_ENCODING);
+    }
+
+    /**
+     * Returns stream of decoded response body.
+     *
+     * @param connection connection
+     * @return input stream
+     * @throws IOException if encoding is not supported or reading fails
+     */
+    public static InputStream getDecodedStream(URLConnection connection) throws IOException {
+        InputStream stream = connection.getInputStream();
+        String encoding = connection.getContentEncoding();
+        if (encoding == null || encoding.isEmpty() || IDENTITY_ENCODING.equalsIgnoreCase(encoding)) {
+            return stream;
+        }
+
+        if (GZIP_ENCODING.equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+            try {
+                return new GZIPInputStream(stream, BUFFER_SIZE);
+            } catch (IOException ex) {
+                stream.close();
+                throw ex;
+            }
+        }
+
+        stream.close();
+        throw new IOException("Unsupported content encoding " + encoding);
+    }
+
+    /**
+     * Returns true if response body is transferred compressed.
+     *
+     * @param connection connection
+     * @return true if response is compressed
+     */
+    public static boolean isCompressed(URLConnection connection) {
+        String encoding = connection.getContentEncoding();
+        return encoding != null && !encoding.isEmpty() && !IDENTITY_ENCODING.equalsIgnoreCase(encoding);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Local cache of HTTP responses using conditional requests.
+ *
+ * Body of each response is stored together with its ETag and Last-Modified
+ * headers. Following requests for the same URL are sent with If-None-Match
+ * and If-Modified-Since headers and response 304 is served from the cache.
+ * Responses are requested compressed and stored decoded.
+ *
+ * @author Minecart team
+ */
+public class HttpResponseCache {
+
+    private static final String BODY_FILE_SUFFIX = ".body";
+    private static final String HEADERS_FILE_SUFFIX = ".headers";
+    private static final String URL_PROPERTY = "url";
+    private static final String ETAG_PROPERTY = "etag";
+    private static final String LAST_MODIFIED_PROPERTY = "lastModified";
+
+    private final File cacheDirectory;
+    private final HttpClient httpClient;
+
+    public HttpResponseCache(File cacheDirectory, HttpClient httpClient) {
+        this.cacheDirectory = cacheDirectory;
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * Opens stream with content of given URL.
+     *
+     * @param url URL
+     * @return input stream
+     * @throws FileNotFoundException if resource doesn't exist
+     * @throws IOException if request fails
+     */
+    public InputStream openStream(URL url) throws IOException {
+        String key = getKey(url);
+        File bodyFile = new File(cacheDirectory, key + BODY_FILE_SUFFIX);
+        File headersFile = new File(cacheDirectory, key + HEADERS_FILE_SUFFIX);
+        Properties headers = loadHeaders(headersFile, url);
+        Map<String, String> requestHeaders = new HashMap<>();
+        if (headers != null && bodyFile.isFile()) {
+            String etag = headers.getProperty(ETAG_PROPERTY);
+            if (etag != null) {
+                requestHeaders.put("If-None-Match", etag);
+            }
+            String lastModified = headers.getProperty(LAST_MODIFIED_PROPERTY);
+            if (lastModified != null) {
+                requestHeaders.put("If-Modified-Since", lastModified);
+            }
+        }
+
+        HttpClient.Response response = httpClient.get(url, requestHeaders);
+        try {
+            if (response.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED && bodyFile.isFile()) {
+                Logger.getLogger(HttpResponseCache.class.getName()).log(Level.FINE, "Not modified: {0}", url);
+                return new FileInputStream(bodyFile);
+            }
+            response.checkSuccessful();
+
+            String etag = response.getHeaderField("ETag");
+            String lastModified = response.getHeaderField("Last-Modified");
+            if (etag == null && lastModified == null) {
+                // Response cannot be validated later, closing of the body closes response
+                InputStream body = response.getBody();
+                response = null;
+                return body;
+            }
+
+            Files.createDirectories(cacheDirectory.toPath());
+            File tempFile = File.createTempFile(key, BODY_FILE_SUFFIX, cacheDirectory);
+            try {
+                try (ReadableByteChannel bodyChannel = Channels.newChannel(response.getBody()); FileChannel tempFileChannel = new FileOutputStream(tempFile).getChannel()) {
+                    DataTransfer.transfer(bodyChannel, tempFileChannel, null);
+                }
+                moveFile(tempFile, bodyFile);
+            } finally {
+                tempFile.delete();
+            }
+
+            Properties newHeaders = new Properties();
+            newHeaders.setProperty(URL_PROPERTY, url.toString());
+            if (etag != null) {
+                newHeaders.setProperty(ETAG_PROPERTY, etag);
+            }
+            if (lastModified != null) {
+                newHeaders.setProperty(LAST_MODIFIED_PROPERTY, lastModified);
+            }
+            storeHeaders(headersFile, newHeaders);
+
+            return new FileInputStream(bodyFile);
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+        }
+    }
+
+    private static Properties loadHeaders(File headersFile, URL url) {
+        if (!headersFile.isFile()) {
+            return null;
+        }
+
+        Properties headers = new Properties();
+        try (InputStream headersInput = new FileInputStream(headersFile)) {
+            headers.load(headersInput);
+        } catch (IOException ex) {
+            Logger.getLogger(HttpResponseCache.class.getName()).log(Level.WARNING, null, ex);
+            return null;
+        }
+
+        return url.toString().equals(headers.getProperty(URL_PROPERTY)) ? headers : null;
+    }
+
+    private static void storeHeaders(File headersFile, Properties headers) throws IOException {
+        File tempFile = File.createTempFile(headersFile.getName(), ".tmp", headersFile.getParentFile());
+        try {
+            try (OutputStream headersOutput = new FileOutputStream(tempFile)) {
+                headers.store(headersOutput, null);
+            }
+            moveFile(tempFile, headersFile);
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    private static void moveFile(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static String getKey(URL url) {
+        MessageDigest digest = Checksums.createSha256Digest();
+        try {
+            return Checksums.toHex(digest.digest(url.toString().getBytes("UTF-8")));
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
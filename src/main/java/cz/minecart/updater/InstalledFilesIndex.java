@@ -0,0 +1,235 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of mod files installed by updater.
+ *
+ * For each file its size, modification time and SHA-256 hash is recorded,
+ * so that hash of file which was not modified doesn't need to be computed
+ * again. Index is stored as text file with header line "#minecart-index 1"
+ * followed by lines with tab separated file name, size, modification time
+ * in milliseconds and hash, which is empty when not known.
+ *
+ * @author Minecart team
+ */
+public class InstalledFilesIndex {
+
+    public static final String HEADER = "#minecart-index 1";
+
+    private static final char FIELD_SEPARATOR = '\t';
+
+    private final File indexFile;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private boolean modified = false;
+
+    private InstalledFilesIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Loads index from file.
+     *
+     * @param indexFile index file
+     * @return index, empty if file doesn't exist
+     * @throws IOException if reading fails
+     */
+    public static InstalledFilesIndex load(File indexFile) throws IOException {
+        InstalledFilesIndex index = new InstalledFilesIndex(indexFile);
+        if (!indexFile.isFile()) {
+            return index;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"))) {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException("Invalid index header: " + line);
+            }
+
+            line = reader.readLine();
+            while (line != null) {
+                if (!line.isEmpty()) {
+                    index.addEntry(parseEntry(line));
+                }
+                line = reader.readLine();
+            }
+        }
+
+        return index;
+    }
+
+    private static Entry parseEntry(String line) throws IOException {
+        String[] fields = line.split(String.valueOf(FIELD_SEPARATOR), -1);
+        if (fields.length != 4 || fields[0].isEmpty()) {
+            throw new IOException("Invalid index entry: " + line);
+        }
+
+        try {
+            return new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3].isEmpty() ? null : fields[3]);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid index entry: " + line);
+        }
+    }
+
+    public File getIndexFile() {
+        return indexFile;
+    }
+
+    /**
+     * Returns names of all indexed files.
+     *
+     * @return list of file names
+     */
+    public synchronized List<String> getFileNames() {
+        List<String> names = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            names.add(entry.name);
+        }
+
+        return names;
+    }
+
+    /**
+     * Returns recorded hash if file was not modified since it was indexed.
+     *
+     * @param name file name (case insensitive)
+     * @param size current size of file
+     * @param lastModified current modification time of file
+     * @return lower case hexadecimal hash or null if not known or file
+     * changed
+     */
+    public synchronized String getHash(String name, long size, long lastModified) {
+        Entry entry = entries.get(name.toLowerCase());
+        if (entry == null || entry.size != size || entry.lastModified != lastModified) {
+            return null;
+        }
+
+        return entry.hash;
+    }
+
+    /**
+     * Records state of the file.
+     *
+     * @param name file name
+     * @param size size of file or -1 if not known
+     * @param lastModified modification time of file or -1 if not known
+     * @param hash lower case hexadecimal hash or null if not known
+     */
+    public synchronized void put(String name, long size, long lastModified, String hash) {
+        addEntry(new Entry(name, size, lastModified, hash));
+        modified = true;
+    }
+
+    public synchronized void remove(String name) {
+        if (entries.remove(name.toLowerCase()) != null) {
+            modified = true;
+        }
+    }
+
+    /**
+     * Removes files which are not in given collection.
+     *
+     * @param names names of existing files (lower case)
+     */
+    public synchronized void retain(Collection<String> names) {
+        Set<String> existingNames = new HashSet<>(names);
+        if (entries.keySet().retainAll(existingNames)) {
+            modified = true;
+        }
+    }
+
+    private void addEntry(Entry entry) {
+        entries.put(entry.name.toLowerCase(), entry);
+    }
+
+    /**
+     * Writes index to file if it was modified.
+     *
+     * @throws IOException if writing fails
+     */
+    public synchronized void save() throws IOException {
+        if (!modified && indexFile.isFile()) {
+            return;
+        }
+
+        File parentDirectory = indexFile.getAbsoluteFile().getParentFile();
+        Files.createDirectories(parentDirectory.toPath());
+        File tempFile = File.createTempFile(indexFile.getName(), ".tmp", parentDirectory);
+        try {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"))) {
+                writer.write(HEADER);
+                writer.write('\n');
+                for (Entry entry : entries.values()) {
+                    writer.write(entry.name);
+                    writer.write(FIELD_SEPARATOR);
+                    writer.write(Long.toString(entry.size));
+                    writer.write(FIELD_SEPARATOR);
+                    writer.write(Long.toString(entry.lastModified));
+                    writer.write(FIELD_SEPARATOR);
+                    writer.write(entry.hash == null ? "" : entry.hash);
+                    writer.write('\n');
+                }
+            }
+
+            try {
+                Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            tempFile.delete();
+        }
+        modified = false;
+    }
+
+    /**
+     * Index record for single file.
+     */
+    private static class Entry {
+
+        private final String name;
+        private final long size;
+        private final long lastModified;
+        private final String hash;
+
+        public Entry(String name, long size, long lastModified, String hash) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+}
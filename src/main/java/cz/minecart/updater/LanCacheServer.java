@@ -0,0 +1,416 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caching HTTP server sharing mod files with other updaters in local
+ * network.
+ *
+ * Mod files are served from path /mods/, so that address of the server can
+ * be used as download URL. Mod file is downloaded from origin server only
+ * once, then it is served from local cache. List of mods is not served,
+ * clients load it from origin server and request each file with its hash
+ * from the list, so that they can verify the file. Only files listed with
+ * the same hash in current list of mods of origin server are served. List
+ * of mods is loaded again from origin server at most once per minute.
+ *
+ * Server answers discovery datagrams broadcasted by other updaters to UDP
+ * port of the same number as its HTTP port.
+ *
+ * @author Minecart team
+ */
+public class LanCacheServer {
+
+    public static final int DEFAULT_PORT = 27555;
+    public static final int DISCOVERY_TIMEOUT = 1000;
+    public static final String HASH_PARAMETER = "sha256";
+
+    private static final String DISCOVERY_REQUEST = "minecart-updater-discover";
+    private static final String DISCOVERY_RESPONSE_PREFIX = "minecart-updater-cache ";
+    private static final String MODS_PATH = "/mods/";
+    private static final int THREADS_COUNT = 16;
+    private static final int DATAGRAM_SIZE = 512;
+    private static final long MODS_MANIFEST_REFRESH_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+    private final int port;
+    private final Origin origin;
+    private final ConcurrentMap<String, Object> fileLocks = new ConcurrentHashMap<>();
+    private volatile ModsManifest modsManifest = null;
+    private final Object modsManifestLock = new Object();
+    private long modsManifestFetchTime = System.nanoTime() - MODS_MANIFEST_REFRESH_INTERVAL;
+    private HttpServer httpServer;
+    private ExecutorService executor;
+    private DatagramSocket discoverySocket;
+
+    /**
+     * Creates server.
+     *
+     * @param port HTTP and UDP port
+     * @param origin source of served data
+     */
+    public LanCacheServer(int port, Origin origin) {
+        this.port = port;
+        this.origin = origin;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Starts serving.
+     *
+     * @throws IOException if ports cannot be bound
+     */
+    public void start() throws IOException {
+        executor = Executors.newFixedThreadPool(THREADS_COUNT, new ServerThreadFactory());
+        httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+        httpServer.createContext(MODS_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleMod(exchange);
+            }
+        });
+        httpServer.setExecutor(executor);
+
+        discoverySocket = new DatagramSocket(port);
+        httpServer.start();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                answerDiscovery();
+            }
+        });
+    }
+
+    /**
+     * Stops serving.
+     */
+    public void stop() {
+        if (discoverySocket != null) {
+            discoverySocket.close();
+        }
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Finds server in local network by broadcasting discovery datagram.
+     *
+     * @param port UDP port of servers
+     * @param timeout time to wait for response in milliseconds
+     * @return URL of first server which responded or null if none
+     */
+    public static URL discover(int port, int timeout) {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setBroadcast(true);
+            socket.setSoTimeout(timeout);
+            byte[] request = DISCOVERY_REQUEST.getBytes("UTF-8");
+            socket.send(new DatagramPacket(request, request.length, InetAddress.getByName("255.255.255.255"), port));
+
+            long deadline = System.currentTimeMillis() + timeout;
+            byte[] buffer = new byte[DATAGRAM_SIZE];
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                socket.setSoTimeout((int) remaining);
+                DatagramPacket response = new DatagramPacket(buffer, buffer.length);
+                socket.receive(response);
+                String message = new String(response.getData(), 0, response.getLength(), "UTF-8");
+                if (message.startsWith(DISCOVERY_RESPONSE_PREFIX)) {
+                    try {
+                        int httpPort = Integer.parseInt(message.substring(DISCOVERY_RESPONSE_PREFIX.length()).trim());
+                        return new URL("http", response.getAddress().getHostAddress(), httpPort, "/");
+                    } catch (NumberFormatException | MalformedURLException ex) {
+                        // Ignore invalid response
+                    }
+                }
+            }
+        } catch (SocketTimeoutException ex) {
+            return null;
+        } catch (IOException ex) {
+            Logger.getLogger(LanCacheServer.class.getName()).log(Level.WARNING, null, ex);
+            return null;
+        }
+    }
+
+    private void answerDiscovery() {
+        byte[] buffer = new byte[DATAGRAM_SIZE];
+        try {
+            byte[] response = (DISCOVERY_RESPONSE_PREFIX + port).getBytes("UTF-8");
+            while (!discoverySocket.isClosed()) {
+                DatagramPacket request = new DatagramPacket(buffer, buffer.length);
+                discoverySocket.receive(request);
+                String message = new String(request.getData(), 0, request.getLength(), "UTF-8");
+                if (DISCOVERY_REQUEST.equals(message.trim())) {
+                    discoverySocket.send(new DatagramPacket(response, response.length, request.getSocketAddress()));
+                }
+            }
+        } catch (SocketException ex) {
+            // Socket closed
+        } catch (IOException ex) {
+            Logger.getLogger(LanCacheServer.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    private void handleMod(HttpExchange exchange) throws IOException {
+        try {
+            String name = decodeFileName(exchange.getRequestURI().getRawPath().substring(MODS_PATH.length()));
+            String hash = parseHash(exchange.getRequestURI().getRawQuery());
+            ModsManifest.Entry entry;
+            try {
+                entry = name == null || hash == null ? null : getModsManifestEntry(name, hash);
+            } catch (IOException ex) {
+                Logger.getLogger(LanCacheServer.class.getName()).log(Level.WARNING, null, ex);
+                sendError(exchange, HttpURLConnection.HTTP_BAD_GATEWAY);
+                return;
+            }
+            if (entry == null) {
+                // Client falls back to origin server
+                sendError(exchange, HttpURLConnection.HTTP_NOT_FOUND);
+                return;
+            }
+
+            File file;
+            try {
+                file = fetchModFile(entry);
+            } catch (FileNotFoundException ex) {
+                sendError(exchange, HttpURLConnection.HTTP_NOT_FOUND);
+                return;
+            } catch (IOException ex) {
+                Logger.getLogger(LanCacheServer.class.getName()).log(Level.WARNING, null, ex);
+                sendError(exchange, HttpURLConnection.HTTP_BAD_GATEWAY);
+                return;
+            }
+
+            try {
+                sendFile(exchange, file);
+            } finally {
+                origin.releaseModFile(entry);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Returns entry of file with requested hash, list of mods is loaded
+     * again from origin server if it doesn't contain such entry and it was
+     * not loaded recently.
+     */
+    private ModsManifest.Entry getModsManifestEntry(String name, String hash) throws IOException {
+        ModsManifest.Entry entry = findModsManifestEntry(modsManifest, name, hash);
+        if (entry != null) {
+            return entry;
+        }
+
+        synchronized (modsManifestLock) {
+            // List could be loaded by concurrent request
+            entry = findModsManifestEntry(modsManifest, name, hash);
+            if (entry != null || System.nanoTime() - modsManifestFetchTime < MODS_MANIFEST_REFRESH_INTERVAL) {
+                return entry;
+            }
+
+            // Failed attempts are limited too
+            modsManifestFetchTime = System.nanoTime();
+            ModsManifest manifest = ModsManifest.read(new ByteArrayInputStream(origin.fetchModsManifest()));
+            modsManifest = manifest;
+            return findModsManifestEntry(manifest, name, hash);
+        }
+    }
+
+    private static ModsManifest.Entry findModsManifestEntry(ModsManifest manifest, String name, String hash) {
+        ModsManifest.Entry entry = manifest == null ? null : manifest.getEntry(name);
+        return entry != null && hash.equals(entry.getHash()) ? entry : null;
+    }
+
+    /**
+     * Returns cached mod file, concurrent requests of the same file wait for
+     * single download.
+     */
+    private File fetchModFile(ModsManifest.Entry entry) throws IOException {
+        Object fileLock = new Object();
+        Object existingLock = fileLocks.putIfAbsent(entry.getHash(), fileLock);
+        if (existingLock != null) {
+            fileLock = existingLock;
+        }
+
+        try {
+            synchronized (fileLock) {
+                return origin.fetchModFile(entry);
+            }
+        } finally {
+            fileLocks.remove(entry.getHash(), fileLock);
+        }
+    }
+
+    /**
+     * Sends file, range of file starting at requested offset is sent if
+     * requested. Content of file is given by its hash so it cannot change
+     * and If-Range doesn't need to be checked.
+     */
+    private static void sendFile(HttpExchange exchange, File file) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath())) {
+            long length = fileChannel.size();
+            long offset = parseRangeStart(exchange.getRequestHeaders().getFirst("Range"));
+            int responseCode = HttpURLConnection.HTTP_OK;
+            if (offset > 0 && offset < length) {
+                responseCode = HttpURLConnection.HTTP_PARTIAL;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + offset + "-" + (length - 1) + "/" + length);
+            } else {
+                offset = 0;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(responseCode, -1);
+                return;
+            }
+
+            exchange.sendResponseHeaders(responseCode, length - offset);
+            try (WritableByteChannel output = Channels.newChannel(exchange.getResponseBody())) {
+                long position = offset;
+                while (position < length) {
+                    position += fileChannel.transferTo(position, length - position, output);
+                }
+            }
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int responseCode) throws IOException {
+        exchange.sendResponseHeaders(responseCode, -1);
+    }
+
+    private static long parseRangeStart(String range) {
+        // Only open range from single offset is used by updater: bytes=start-
+        if (range == null || !range.startsWith("bytes=") || !range.endsWith("-")) {
+            return 0;
+        }
+
+        try {
+            return Long.parseLong(range.substring(6, range.length() - 1).trim());
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private static String parseHash(String query) {
+        if (query == null) {
+            return null;
+        }
+
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith(HASH_PARAMETER + "=")) {
+                String hash = parameter.substring(HASH_PARAMETER.length() + 1).toLowerCase();
+                return hash.matches("[0-9a-f]{64}") ? hash : null;
+            }
+        }
+
+        return null;
+    }
+
+    private static String decodeFileName(String encodedName) throws UnsupportedEncodingException {
+        String name = URLDecoder.decode(encodedName.replace("+", "%2B"), "UTF-8");
+        if (name.isEmpty() || name.contains("/") || name.contains("\\") || name.startsWith(".")) {
+            return null;
+        }
+
+        return name;
+    }
+
+    /**
+     * Source of data served to local network.
+     */
+    public static interface Origin {
+
+        /**
+         * Returns current content of the list of mods from origin server.
+         *
+         * @return content of the list
+         * @throws IOException if download fails
+         */
+        byte[] fetchModsManifest() throws IOException;
+
+        /**
+         * Returns local copy of mod file, downloading it if necessary.
+         *
+         * File is kept until it is released.
+         *
+         * @param entry manifest entry of the file
+         * @return local file
+         * @throws IOException if download fails
+         */
+        File fetchModFile(ModsManifest.Entry entry) throws IOException;
+
+        /**
+         * Releases local copy of mod file after it was sent.
+         *
+         * @param entry manifest entry of the file
+         */
+        void releaseModFile(ModsManifest.Entry entry);
+    }
+
+    private static class ServerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadIndex = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "lan-cache-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
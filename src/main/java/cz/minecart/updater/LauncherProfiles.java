@@ -0,0 +1,211 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Lookup of profile in launcher_profiles.json file of Minecraft launcher.
+ *
+ * File is parsed as stream without building the object tree, as it can
+ * contain large embedded icons, and parsing stops as soon as the profile
+ * is found.
+ *
+ * @author Minecart team
+ */
+public class LauncherProfiles {
+
+    public static final String PROFILES_FILE_NAME = "launcher_profiles.json";
+
+    private static final String PROFILES_KEY = "profiles";
+    private static final String GAME_DIR_KEY = "gameDir";
+
+    private LauncherProfiles() {
+    }
+
+    /**
+     * Finds profile of given name.
+     *
+     * Profile with exactly matching name is preferred, otherwise first
+     * profile with name differing only in case is returned.
+     *
+     * @param profilesFile launcher profiles file
+     * @param profileName profile name
+     * @return profile or null if not found
+     * @throws IOException if reading fails
+     * @throws ParseException if file is not valid JSON
+     */
+    public static Profile findProfile(File profilesFile, String profileName) throws IOException, ParseException {
+        long lastModified = profilesFile.lastModified();
+        long size = profilesFile.length();
+        ProfileHandler handler = new ProfileHandler(profileName);
+        try (Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(profilesFile), "UTF-8"))) {
+            new JSONParser().parse(reader, handler);
+        }
+
+        String name = handler.exactMatch ? profileName : handler.alternativeName;
+        if (name == null) {
+            return null;
+        }
+
+        return new Profile(profilesFile, lastModified, size, name, handler.exactMatch ? handler.gameDir : handler.alternativeGameDir);
+    }
+
+    /**
+     * Profile found in launcher profiles file.
+     */
+    public static class Profile {
+
+        public Profile(File profilesFile, long lastModified, long size, String name, String gameDir) {
+            this.profilesFile = profilesFile.getAbsoluteFile();
+            this.lastModified = lastModified;
+            this.size = size;
+            this.name = name;
+            this.gameDir = gameDir;
+        }
+
+        /**
+         * Returns true if profile was found in given file in its current
+         * state.
+         *
+         * @param profilesFile launcher profiles file
+         * @param profileName requested profile name
+         * @return true if file was not modified since profile was found
+         */
+        public boolean isCurrent(File profilesFile, String profileName) {
+            return this.profilesFile.equals(profilesFile.getAbsoluteFile())
+                    && lastModified == profilesFile.lastModified()
+                    && size == profilesFile.length()
+                    && name.equalsIgnoreCase(profileName);
+        }
+
+        File profilesFile;
+        long lastModified;
+        long size;
+        String name;
+        String gameDir;
+    }
+
+    /**
+     * Handler tracking path of current value in document.
+     *
+     * Only entries of objects nested in objects are followed, so that path
+     * matches only if there is no array on the way.
+     */
+    private static class ProfileHandler implements ContentHandler {
+
+        private final String profileName;
+        private final List<String> keys = new ArrayList<>();
+        private int depth = 0;
+        private boolean inProfile = false;
+
+        boolean exactMatch = false;
+        String gameDir = null;
+        String alternativeName = null;
+        String alternativeGameDir = null;
+
+        public ProfileHandler(String profileName) {
+            this.profileName = profileName;
+        }
+
+        @Override
+        public void startJSON() {
+        }
+
+        @Override
+        public void endJSON() {
+        }
+
+        @Override
+        public boolean startObject() {
+            depth++;
+            return true;
+        }
+
+        @Override
+        public boolean endObject() {
+            depth--;
+            return true;
+        }
+
+        @Override
+        public boolean startObjectEntry(String key) {
+            keys.add(key);
+            if (isProfileEntry()) {
+                if (key.equals(profileName)) {
+                    exactMatch = true;
+                    inProfile = true;
+                } else if (alternativeName == null && key.equalsIgnoreCase(profileName)) {
+                    alternativeName = key;
+                    inProfile = true;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean endObjectEntry() {
+            boolean profileEntry = isProfileEntry();
+            String key = keys.remove(keys.size() - 1);
+            if (profileEntry) {
+                inProfile = false;
+                // Exactly matching profile cannot be overridden
+                return !exactMatch;
+            }
+
+            // Stop at the end of the profiles
+            return !(keys.isEmpty() && depth == 1 && PROFILES_KEY.equals(key));
+        }
+
+        @Override
+        public boolean startArray() {
+            depth++;
+            return true;
+        }
+
+        @Override
+        public boolean endArray() {
+            depth--;
+            return true;
+        }
+
+        @Override
+        public boolean primitive(Object value) {
+            if (inProfile && keys.size() == 3 && depth == 3 && GAME_DIR_KEY.equals(keys.get(2)) && value instanceof String) {
+                if (exactMatch) {
+                    gameDir = (String) value;
+                } else {
+                    alternativeGameDir = (String) value;
+                }
+            }
+            return true;
+        }
+
+        private boolean isProfileEntry() {
+            return keys.size() == 2 && depth == 2 && PROFILES_KEY.equals(keys.get(0));
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ranking of download servers by measured latency and throughput.
+ *
+ * Each server is probed by small request: range request for the first
+ * bytes of probe file measures both the latency and throughput, HEAD
+ * request of mods directory measures latency only. Servers are ordered by
+ * estimated time of download of reference amount of data, failed servers
+ * are placed last in configured order.
+ *
+ * @author Minecart team
+ */
+public class MirrorRanking {
+
+    public static final long MAX_AGE = TimeUnit.HOURS.toMillis(24);
+    public static final int PROBE_SIZE = 65536;
+    public static final long PROBE_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    private static final long REFERENCE_SIZE = 1024 * 1024;
+    private static final String DEFAULT_PROBE_PATH = "mods/";
+    private static final String TIME_PROPERTY = "time";
+    private static final String URL_PREFIX = "url_";
+    private static final String LATENCY_PREFIX = "latency_";
+    private static final String THROUGHPUT_PREFIX = "throughput_";
+
+    private final long time;
+    private final List<Measurement> measurements;
+
+    private MirrorRanking(long time, List<Measurement> measurements) {
+        this.time = time;
+        this.measurements = measurements;
+    }
+
+    /**
+     * Probes all servers concurrently.
+     *
+     * @param httpClient HTTP client
+     * @param baseUrls download URLs of servers in configured order
+     * @param probePath path of probe file relative to download URL or null
+     * @return ranking
+     */
+    public static MirrorRanking probe(final HttpClient httpClient, List<URL> baseUrls, String probePath) {
+        final String path = probePath == null || probePath.isEmpty() ? DEFAULT_PROBE_PATH : probePath;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, baseUrls.size()), new ProbeThreadFactory());
+        List<Future<Measurement>> futures = new ArrayList<>();
+        for (final URL baseUrl : baseUrls) {
+            futures.add(executor.submit(new Callable<Measurement>() {
+                @Override
+                public Measurement call() throws Exception {
+                    return probe(httpClient, baseUrl, path);
+                }
+            }));
+        }
+        executor.shutdown();
+
+        List<Measurement> measurements = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT);
+        try {
+            for (int i = 0; i < baseUrls.size(); i++) {
+                Measurement measurement;
+                try {
+                    measurement = futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (ExecutionException | TimeoutException | CancellationException ex) {
+                    measurement = new Measurement(baseUrls.get(i), -1, -1);
+                }
+                measurements.add(measurement);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            for (int i = measurements.size(); i < baseUrls.size(); i++) {
+                measurements.add(new Measurement(baseUrls.get(i), -1, -1));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        sort(measurements);
+        return new MirrorRanking(System.currentTimeMillis(), measurements);
+    }
+
+    private static Measurement probe(HttpClient httpClient, URL baseUrl, String probePath) {
+        try {
+            URL probeUrl = new URL(baseUrl.toURI().toString() + "/" + probePath);
+            boolean probeFile = !probePath.endsWith("/");
+            Map<String, String> requestHeaders = new HashMap<>();
+            if (probeFile) {
+                requestHeaders.put("Range", "bytes=0-" + (PROBE_SIZE - 1));
+                requestHeaders.put("Accept-Encoding", HttpCompression.IDENTITY_ENCODING);
+            }
+
+            long startTime = System.nanoTime();
+            try (HttpClient.Response response = probeFile ? httpClient.get(probeUrl, requestHeaders) : httpClient.head(probeUrl)) {
+                long responseTime = System.nanoTime();
+                long latency = TimeUnit.NANOSECONDS.toMillis(responseTime - startTime);
+                if (!probeFile) {
+                    // Any response which is not server error proves that server is alive
+                    return new Measurement(baseUrl, response.getResponseCode() < HttpURLConnection.HTTP_INTERNAL_ERROR ? latency : -1, -1);
+                }
+
+                response.checkSuccessful();
+                long length = 0;
+                try (InputStream body = response.getBody()) {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while (length < PROBE_SIZE && (read = body.read(buffer)) >= 0) {
+                        length += read;
+                    }
+                }
+                long transferTime = System.nanoTime() - responseTime;
+                long throughput = transferTime > 0 && length > 0 ? length * TimeUnit.SECONDS.toNanos(1) / transferTime : -1;
+                return new Measurement(baseUrl, latency, throughput);
+            }
+        } catch (IOException | URISyntaxException ex) {
+            Logger.getLogger(MirrorRanking.class.getName()).log(Level.WARNING, null, ex);
+            return new Measurement(baseUrl, -1, -1);
+        }
+    }
+
+    private static void sort(List<Measurement> measurements) {
+        // Stable sort keeps configured order of equal and failed servers
+        Collections.sort(measurements, new Comparator<Measurement>() {
+            @Override
+            public int compare(Measurement measurement1, Measurement measurement2) {
+                return Long.compare(measurement1.getEstimatedTime(), measurement2.getEstimatedTime());
+            }
+        });
+    }
+
+    /**
+     * Loads ranking stored by previous run.
+     *
+     * @param rankingFile ranking file
+     * @param baseUrls download URLs of servers in configured order
+     * @return ranking or null if not available, outdated or made for
+     * different servers
+     */
+    public static MirrorRanking load(File rankingFile, List<URL> baseUrls) {
+        if (!rankingFile.isFile()) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream rankingInput = new FileInputStream(rankingFile)) {
+            properties.load(rankingInput);
+        } catch (IOException ex) {
+            Logger.getLogger(MirrorRanking.class.getName()).log(Level.WARNING, null, ex);
+            return null;
+        }
+
+        try {
+            long time = Long.parseLong(properties.getProperty(TIME_PROPERTY, "0"));
+            long age = System.currentTimeMillis() - time;
+            if (age < 0 || age > MAX_AGE) {
+                return null;
+            }
+
+            // URLs are compared as strings, equals of URL resolves host names
+            List<Measurement> measurements = new ArrayList<>();
+            List<String> remainingUrls = new ArrayList<>();
+            for (URL baseUrl : baseUrls) {
+                remainingUrls.add(baseUrl.toString());
+            }
+            int index = 0;
+            String url;
+            while ((url = properties.getProperty(URL_PREFIX + index)) != null) {
+                if (!remainingUrls.remove(url)) {
+                    return null;
+                }
+                URL baseUrl = new URL(url);
+                long latency = Long.parseLong(properties.getProperty(LATENCY_PREFIX + index, "-1"));
+                long throughput = Long.parseLong(properties.getProperty(THROUGHPUT_PREFIX + index, "-1"));
+                measurements.add(new Measurement(baseUrl, latency, throughput));
+                index++;
+            }
+
+            return remainingUrls.isEmpty() ? new MirrorRanking(time, measurements) : null;
+        } catch (NumberFormatException | MalformedURLException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores ranking for next runs.
+     *
+     * @param rankingFile ranking file
+     * @throws IOException if writing fails
+     */
+    public void save(File rankingFile) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(TIME_PROPERTY, Long.toString(time));
+        for (int i = 0; i < measurements.size(); i++) {
+            Measurement measurement = measurements.get(i);
+            properties.setProperty(URL_PREFIX + i, measurement.url.toString());
+            properties.setProperty(LATENCY_PREFIX + i, Long.toString(measurement.latency));
+            properties.setProperty(THROUGHPUT_PREFIX + i, Long.toString(measurement.throughput));
+        }
+
+        File tempFile = new File(rankingFile.getPath() + ".tmp");
+        try (OutputStream rankingOutput = new FileOutputStream(tempFile)) {
+            properties.store(rankingOutput, "Minecart Updater Mirrors");
+        }
+
+        try {
+            Files.move(tempFile.toPath(), rankingFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tempFile.toPath(), rankingFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Returns download URLs ordered from the best one.
+     *
+     * @return list of URLs
+     */
+    public List<URL> getUrls() {
+        List<URL> urls = new ArrayList<>();
+        for (Measurement measurement : measurements) {
+            urls.add(measurement.url);
+        }
+
+        return urls;
+    }
+
+    /**
+     * Returns count of servers which responded to probe.
+     *
+     * @return count of servers
+     */
+    public int getAvailableCount() {
+        int count = 0;
+        for (Measurement measurement : measurements) {
+            if (!measurement.isFailed()) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    public List<Measurement> getMeasurements() {
+        return Collections.unmodifiableList(measurements);
+    }
+
+    /**
+     * Result of probe of single server.
+     */
+    public static class Measurement {
+
+        public Measurement(URL url, long latency, long throughput) {
+            this.url = url;
+            this.latency = latency;
+            this.throughput = throughput;
+        }
+
+        /**
+         * Returns estimated time of download of reference amount of data.
+         *
+         * @return time in milliseconds, Long.MAX_VALUE for failed server
+         */
+        public long getEstimatedTime() {
+            if (latency < 0) {
+                return Long.MAX_VALUE;
+            }
+
+            return throughput > 0 ? latency + REFERENCE_SIZE * 1000 / throughput : latency;
+        }
+
+        public URL getUrl() {
+            return url;
+        }
+
+        public boolean isFailed() {
+            return latency < 0;
+        }
+
+        @Override
+        public String toString() {
+            return url + " " + latency + " ms" + (throughput > 0 ? " " + throughput / 1024 + " kB/s" : "");
+        }
+
+        final URL url;
+        // Time to response in milliseconds or -1 if probe failed
+        final long latency;
+        // Bytes per second or -1 if not measured
+        final long throughput;
+    }
+
+    private static class ProbeThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadIndex = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "mirror-probe-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watcher keeping list of files in mods directory up to date.
+ *
+ * Directory is listed once when watching starts, then only files reported
+ * by watch service are read again. When events are lost, directory is
+ * listed again. Watcher becomes invalid when directory is removed or
+ * moved.
+ *
+ * Events are processed by watcher thread, pending events are processed
+ * before list of files is copied. As events are delivered with delay, list
+ * is checked against modification time of directory and attributes of
+ * files before it is copied. Watch service which polls the directory,
+ * as on macOS, reports changes too late, so list of files is not provided
+ * and directory has to be listed.
+ *
+ * @author Minecart team
+ */
+public class ModsDirectoryWatcher {
+
+    private static final String POLLING_WATCH_SERVICE_CLASS = "PollingWatchService";
+
+    private final File modsDirectory;
+    private final ChangeListener listener;
+    private final WatchService watchService;
+    private final Map<String, File> files = new HashMap<>();
+    private final Map<String, BasicFileAttributes> attributes = new HashMap<>();
+    private final boolean polling;
+    private FileTime directoryModifiedTime = null;
+    private volatile boolean valid = true;
+
+    private ModsDirectoryWatcher(File modsDirectory, ChangeListener listener) throws IOException {
+        this.modsDirectory = modsDirectory;
+        this.listener = listener;
+        watchService = modsDirectory.toPath().getFileSystem().newWatchService();
+        polling = watchService.getClass().getName().endsWith(POLLING_WATCH_SERVICE_CLASS);
+    }
+
+    /**
+     * Starts watching of mods directory.
+     *
+     * @param modsDirectory mods directory
+     * @param listener listener notified from watcher thread or null
+     * @return running watcher
+     * @throws IOException if directory cannot be watched or listed
+     */
+    public static ModsDirectoryWatcher start(File modsDirectory, ChangeListener listener) throws IOException {
+        final ModsDirectoryWatcher watcher = new ModsDirectoryWatcher(modsDirectory, listener);
+        try {
+            // Registered before listing so that no change is missed
+            modsDirectory.toPath().register(watcher.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watcher.rescan();
+        } catch (IOException ex) {
+            watcher.close();
+            throw ex;
+        }
+
+        Thread watcherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watcher.processEvents();
+            }
+        }, "mods-directory-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+        return watcher;
+    }
+
+    /**
+     * Lists files in directory together with their attributes.
+     *
+     * @param directory directory
+     * @param files map to fill with files by lower case name
+     * @param attributes map to fill with attributes by lower case name
+     * @throws IOException if listing fails
+     */
+    public static void listFiles(File directory, final Map<String, File> files, final Map<String, BasicFileAttributes> attributes) throws IOException {
+        Files.walkFileTree(directory.toPath(), EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String name = file.getFileName().toString().toLowerCase();
+                files.put(name, file.toFile());
+                attributes.put(name, attrs);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    public File getModsDirectory() {
+        return modsDirectory;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Copies current list of files, pending events are processed first.
+     *
+     * @param files map to fill with files by lower case name
+     * @param attributes map to fill with attributes by lower case name
+     * @return false if watcher is no longer valid or cannot provide current
+     * list and nothing was copied
+     */
+    public synchronized boolean copyFiles(Map<String, File> files, Map<String, BasicFileAttributes> attributes) {
+        if (!valid || polling) {
+            return false;
+        }
+
+        try {
+            WatchKey key;
+            while (valid && (key = watchService.poll()) != null) {
+                processKey(key);
+            }
+            if (valid) {
+                verifyFiles();
+            }
+        } catch (ClosedWatchServiceException ex) {
+            return false;
+        } catch (IOException ex) {
+            Logger.getLogger(ModsDirectoryWatcher.class.getName()).log(Level.WARNING, null, ex);
+            close();
+            return false;
+        }
+        if (!valid) {
+            return false;
+        }
+
+        files.putAll(this.files);
+        attributes.putAll(this.attributes);
+        return true;
+    }
+
+    /**
+     * Stops watching.
+     */
+    public void close() {
+        valid = false;
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            Logger.getLogger(ModsDirectoryWatcher.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    private void processEvents() {
+        try {
+            while (valid) {
+                WatchKey key = watchService.take();
+                synchronized (this) {
+                    processKey(key);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // Watching stopped
+        } catch (IOException ex) {
+            Logger.getLogger(ModsDirectoryWatcher.class.getName()).log(Level.WARNING, null, ex);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Updates list of files by events of the key and notifies listener.
+     */
+    private void processKey(WatchKey key) throws IOException {
+        boolean overflow = false;
+        Set<String> changedFiles = new LinkedHashSet<>();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+            } else {
+                changedFiles.add(((Path) event.context()).toString());
+            }
+        }
+
+        if (overflow) {
+            rescan();
+        } else {
+            for (String fileName : changedFiles) {
+                refresh(fileName);
+            }
+        }
+        if (!key.reset()) {
+            // Directory was removed or moved away
+            valid = false;
+        }
+
+        if (listener != null) {
+            if (overflow || !valid) {
+                listener.modsDirectoryChanged(modsDirectory, null);
+            } else {
+                for (String fileName : changedFiles) {
+                    listener.modsDirectoryChanged(modsDirectory, fileName);
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates list of files by current state of directory for changes not
+     * reported yet.
+     */
+    private void verifyFiles() throws IOException {
+        FileTime modifiedTime = Files.readAttributes(modsDirectory.toPath(), BasicFileAttributes.class).lastModifiedTime();
+        if (!modifiedTime.equals(directoryModifiedTime)) {
+            // Files were added or removed
+            rescan();
+            return;
+        }
+
+        for (String name : new ArrayList<>(files.keySet())) {
+            BasicFileAttributes fileAttributes;
+            try {
+                fileAttributes = Files.readAttributes(files.get(name).toPath(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException ex) {
+                fileAttributes = null;
+            }
+
+            BasicFileAttributes knownAttributes = attributes.get(name);
+            if (fileAttributes == null) {
+                files.remove(name);
+                attributes.remove(name);
+            } else if (fileAttributes.size() != knownAttributes.size() || !fileAttributes.lastModifiedTime().equals(knownAttributes.lastModifiedTime())) {
+                attributes.put(name, fileAttributes);
+            }
+        }
+    }
+
+    private void rescan() throws IOException {
+        Map<String, File> scannedFiles = new HashMap<>();
+        Map<String, BasicFileAttributes> scannedAttributes = new HashMap<>();
+        // Read before listing so that changes made during listing are detected
+        FileTime modifiedTime = Files.readAttributes(modsDirectory.toPath(), BasicFileAttributes.class).lastModifiedTime();
+        listFiles(modsDirectory, scannedFiles, scannedAttributes);
+
+        synchronized (this) {
+            directoryModifiedTime = modifiedTime;
+            files.clear();
+            files.putAll(scannedFiles);
+            attributes.clear();
+            attributes.putAll(scannedAttributes);
+        }
+    }
+
+    private void refresh(String fileName) throws IOException {
+        Path file = modsDirectory.toPath().resolve(fileName);
+        BasicFileAttributes fileAttributes;
+        try {
+            fileAttributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException ex) {
+            fileAttributes = null;
+        }
+
+        String name = fileName.toLowerCase();
+        synchronized (this) {
+            if (fileAttributes == null) {
+                files.remove(name);
+                attributes.remove(name);
+            } else {
+                files.put(name, file.toFile());
+                attributes.put(name, fileAttributes);
+            }
+        }
+    }
+
+    public static interface ChangeListener {
+
+        /**
+         * Reports change of mods directory not made by updater.
+         *
+         * @param modsDirectory mods directory
+         * @param fileName name of changed file or null if not known
+         */
+        void modsDirectoryChanged(File modsDirectory, String fileName);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Downloads mod files concurrently using bounded pool of workers.
+ *
+ * @author Minecart team
+ */
+public class ModsDownloader {
+
+    public static final int DEFAULT_THREADS_COUNT = 4;
+    public static final int MAX_THREADS_COUNT = 16;
+
+    private final int threadsCount;
+
+    public ModsDownloader(int threadsCount) {
+        this.threadsCount = Math.max(1, Math.min(threadsCount, MAX_THREADS_COUNT));
+    }
+
+    /**
+     * Downloads all given files, stops on first failed download.
+     *
+     * Progress is reported from the calling thread only.
+     *
+     * @param files files to download
+     * @param fileDownloader downloader of single file
+     * @param statusObserver progress observer or null
+     * @return download result
+     */
+    public Result download(Collection<String> files, final FileDownloader fileDownloader, Updater.UpdatePlanObserver statusObserver) {
+        Result result = new Result();
+        int filesCount = files.size();
+        if (filesCount == 0) {
+            return result;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadsCount, filesCount), new DownloadThreadFactory());
+        CompletionService<String> completionService = new ExecutorCompletionService<>(executor);
+        final AtomicBoolean aborted = new AtomicBoolean(false);
+        Map<Future<String>, String> pendingFiles = new HashMap<>();
+        try {
+            for (final String file : files) {
+                Future<String> future = completionService.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        if (aborted.get()) {
+                            throw new CancellationException();
+                        }
+                        fileDownloader.download(file);
+                        return file;
+                    }
+                });
+                pendingFiles.put(future, file);
+            }
+
+            while (!pendingFiles.isEmpty()) {
+                Future<String> future = completionService.take();
+                String file = pendingFiles.remove(future);
+                try {
+                    future.get();
+                    result.completedFiles.add(file);
+                    if (statusObserver != null) {
+                        statusObserver.reportProgress(false, (result.completedFiles.size() * 100) / filesCount);
+                    }
+                } catch (CancellationException ex) {
+                    // Skipped after failure of other download
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (!(cause instanceof CancellationException)) {
+                        Logger.getLogger(ModsDownloader.class.getName()).log(Level.SEVERE, null, cause);
+                        result.failedFiles.add(file);
+                        if (!aborted.getAndSet(true)) {
+                            for (Future<String> pendingFuture : pendingFiles.keySet()) {
+                                pendingFuture.cancel(true);
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            aborted.set(true);
+            result.failedFiles.addAll(pendingFiles.values());
+        } finally {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return result;
+    }
+
+    public static interface FileDownloader {
+
+        /**
+         * Downloads single file.
+         *
+         * Implementation is expected not to create target file unless
+         * download completes and the file is verified. Partially downloaded
+         * data may be kept aside to resume download later.
+         *
+         * @param file name of the file
+         * @throws IOException if download fails
+         */
+        void download(String file) throws IOException;
+    }
+
+    public static class Result {
+
+        private final List<String> completedFiles = new ArrayList<>();
+        private final List<String> failedFiles = new ArrayList<>();
+
+        public boolean isSuccessful() {
+            return failedFiles.isEmpty();
+        }
+
+        public List<String> getCompletedFiles() {
+            return completedFiles;
+        }
+
+        public List<String> getFailedFiles() {
+            return failedFiles;
+        }
+    }
+
+    private static class DownloadThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadIndex = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "mods-download-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
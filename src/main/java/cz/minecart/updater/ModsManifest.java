@@ -0,0 +1,285 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * List of mod files published on server.
+ *
+ * Two formats are supported. Legacy format contains single file name per
+ * line terminated by empty line. Versioned format starts with header line
+ * "#minecart-files 2" followed by lines with tab separated file name, size
+ * in bytes and SHA-256 hash in hexadecimal. Empty lines and lines starting
+ * with # are ignored in versioned format.
+ *
+ * Versioned format can also list binary deltas available for the file as
+ * lines "@delta" followed by tab separated target file name, SHA-256 hash of
+ * the base file, delta file name and size of delta file.
+ *
+ * @author Minecart team
+ */
+public class ModsManifest {
+
+    public static final String HEADER_PREFIX = "#minecart-files ";
+    public static final int LEGACY_VERSION = 1;
+    public static final int CURRENT_VERSION = 2;
+
+    public static final String DELTA_RECORD_PREFIX = "@delta\t";
+
+    private static final char FIELD_SEPARATOR = '\t';
+
+    private int version = LEGACY_VERSION;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private final Map<String, List<Delta>> deltas = new HashMap<>();
+
+    public int getVersion() {
+        return version;
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * Returns entry for given file name.
+     *
+     * @param name file name (case insensitive)
+     * @return entry or null if not present
+     */
+    public Entry getEntry(String name) {
+        return entries.get(name.toLowerCase());
+    }
+
+    public void addEntry(Entry entry) {
+        entries.put(entry.name.toLowerCase(), entry);
+    }
+
+    /**
+     * Returns deltas available for given file.
+     *
+     * @param name target file name (case insensitive)
+     * @return list of deltas, empty if there is none
+     */
+    public List<Delta> getDeltas(String name) {
+        List<Delta> fileDeltas = deltas.get(name.toLowerCase());
+        return fileDeltas == null ? Collections.<Delta>emptyList() : fileDeltas;
+    }
+
+    public void addDelta(Delta delta) {
+        String key = delta.targetName.toLowerCase();
+        List<Delta> fileDeltas = deltas.get(key);
+        if (fileDeltas == null) {
+            fileDeltas = new ArrayList<>();
+            deltas.put(key, fileDeltas);
+        }
+        fileDeltas.add(delta);
+    }
+
+    /**
+     * Reads manifest from stream line by line.
+     *
+     * @param stream input stream
+     * @return manifest
+     * @throws IOException if reading fails or format is invalid
+     */
+    public static ModsManifest read(InputStream stream) throws IOException {
+        ModsManifest manifest = new ModsManifest();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+        String line = reader.readLine();
+        if (line != null && line.startsWith(HEADER_PREFIX)) {
+            try {
+                manifest.version = Integer.parseInt(line.substring(HEADER_PREFIX.length()).trim());
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid manifest header: " + line);
+            }
+            if (manifest.version > CURRENT_VERSION) {
+                throw new IOException("Unsupported manifest version " + manifest.version);
+            }
+
+            line = reader.readLine();
+            while (line != null) {
+                if (line.startsWith(DELTA_RECORD_PREFIX)) {
+                    manifest.addDelta(parseDelta(line));
+                } else if (!line.isEmpty() && line.charAt(0) != '#') {
+                    manifest.addEntry(parseEntry(line));
+                }
+                line = reader.readLine();
+            }
+        } else {
+            while (line != null && !line.isEmpty()) {
+                manifest.addEntry(new Entry(line, -1, null));
+                line = reader.readLine();
+            }
+        }
+
+        return manifest;
+    }
+
+    private static Entry parseEntry(String line) throws IOException {
+        int sizePos = line.indexOf(FIELD_SEPARATOR);
+        int hashPos = sizePos < 0 ? -1 : line.indexOf(FIELD_SEPARATOR, sizePos + 1);
+        if (hashPos < 0) {
+            throw new IOException("Invalid manifest entry: " + line);
+        }
+
+        String name = line.substring(0, sizePos);
+        long size;
+        try {
+            size = Long.parseLong(line.substring(sizePos + 1, hashPos));
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid size of manifest entry: " + line);
+        }
+        String hash = line.substring(hashPos + 1).trim().toLowerCase();
+        if (name.isEmpty() || !isValidHash(hash)) {
+            throw new IOException("Invalid manifest entry: " + line);
+        }
+
+        return new Entry(name, size, hash);
+    }
+
+    private static Delta parseDelta(String line) throws IOException {
+        String[] fields = line.substring(DELTA_RECORD_PREFIX.length()).split("\t");
+        String baseHash = fields.length > 1 ? fields[1].toLowerCase() : "";
+        if (fields.length != 4 || fields[0].isEmpty() || !isValidHash(baseHash) || !isValidFileName(fields[2])) {
+            throw new IOException("Invalid manifest delta record: " + line);
+        }
+
+        long size;
+        try {
+            size = Long.parseLong(fields[3]);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid size of manifest delta record: " + line);
+        }
+
+        return new Delta(fields[0], baseHash, fields[2], size);
+    }
+
+    /**
+     * Hash is used as file name in local cache, so only hexadecimal SHA-256
+     * hash is accepted.
+     */
+    private static boolean isValidHash(String hash) {
+        return hash.matches("[0-9a-f]{64}");
+    }
+
+    /**
+     * File name is resolved against download location, so it can't contain
+     * path.
+     */
+    private static boolean isValidFileName(String fileName) {
+        return !fileName.isEmpty() && !fileName.contains("/") && !fileName.contains("\\") && !fileName.equals("..") && !fileName.equals(".");
+    }
+
+    /**
+     * Manifest record for single file.
+     */
+    public static class Entry {
+
+        private final String name;
+        private final long size;
+        private final String hash;
+
+        public Entry(String name, long size, String hash) {
+            this.name = name;
+            this.size = size;
+            this.hash = hash;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns size of file.
+         *
+         * @return size in bytes or -1 if not known
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns SHA-256 hash of the file.
+         *
+         * @return lower case hexadecimal hash or null if not known
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        public boolean hasHash() {
+            return hash != null;
+        }
+    }
+
+    /**
+     * Manifest record for binary delta between two versions of the file.
+     */
+    public static class Delta {
+
+        private final String targetName;
+        private final String baseHash;
+        private final String fileName;
+        private final long size;
+
+        public Delta(String targetName, String baseHash, String fileName, long size) {
+            this.targetName = targetName;
+            this.baseHash = baseHash;
+            this.fileName = fileName;
+            this.size = size;
+        }
+
+        public String getTargetName() {
+            return targetName;
+        }
+
+        /**
+         * Returns SHA-256 hash of the file delta applies to.
+         *
+         * @return lower case hexadecimal hash
+         */
+        public String getBaseHash() {
+            return baseHash;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+}
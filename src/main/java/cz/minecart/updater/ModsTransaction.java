@@ -0,0 +1,374 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Update of mods directory performed as transaction.
+ *
+ * New content of mods directory is prepared in sibling staging directory,
+ * unchanged files are hard linked into it. Staging directory then replaces
+ * mods directory by rename. Progress is recorded in journal file so that
+ * interrupted update can be finished or resumed later.
+ *
+ * @author Minecart team
+ */
+public class ModsTransaction {
+
+    public static final String STAGING_SUFFIX = ".staging";
+    public static final String PREVIOUS_SUFFIX = ".previous";
+    public static final String PART_FILE_SUFFIX = ".part";
+
+    private static final String STATE_PROPERTY = "state";
+    private static final String MODS_DIRECTORY_PROPERTY = "modsDirectory";
+    private static final String DOWNLOADED_PREFIX = "downloaded.";
+
+    private final File journalFile;
+    private final Properties journal = new Properties();
+    private final Set<String> stagedFiles = new HashSet<>();
+    private File modsDirectory;
+    private File stagingDirectory;
+
+    public ModsTransaction(File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Finishes update interrupted after staging was completed.
+     *
+     * Update interrupted during staging leaves mods directory untouched and
+     * staging directory is kept to be reused by next update.
+     *
+     * @return state of recovered transaction or null if there was none
+     * @throws IOException if recovery fails
+     */
+    public State recover() throws IOException {
+        if (!loadJournal()) {
+            return null;
+        }
+
+        State state = getState();
+        String modsDirectoryPath = journal.getProperty(MODS_DIRECTORY_PROPERTY);
+        if (state == null || modsDirectoryPath == null) {
+            journalFile.delete();
+            return null;
+        }
+
+        modsDirectory = new File(modsDirectoryPath);
+        stagingDirectory = getSiblingDirectory(modsDirectory, STAGING_SUFFIX);
+        switch (state) {
+            case STAGING: {
+                if (!modsDirectory.isDirectory()) {
+                    // Target no longer exists, discard staged files
+                    deleteRecursively(stagingDirectory.toPath());
+                    journalFile.delete();
+                }
+                break;
+            }
+            case COMMITTING: {
+                finishCommit();
+                break;
+            }
+        }
+
+        return state;
+    }
+
+    /**
+     * Starts transaction for given mods directory.
+     *
+     * Files downloaded by previous unfinished transaction for the same
+     * directory are kept in staging directory, everything else is removed
+     * from it.
+     *
+     * @param modsDirectory mods directory
+     * @return staging directory
+     * @throws IOException if staging directory cannot be prepared
+     */
+    public File begin(File modsDirectory) throws IOException {
+        loadJournal();
+        String previousModsDirectory = journal.getProperty(MODS_DIRECTORY_PROPERTY);
+        this.modsDirectory = modsDirectory;
+        stagingDirectory = getSiblingDirectory(modsDirectory, STAGING_SUFFIX);
+        stagedFiles.clear();
+
+        boolean resume = getState() == State.STAGING && modsDirectory.getAbsolutePath().equals(previousModsDirectory);
+        if (!resume) {
+            journal.clear();
+            deleteRecursively(stagingDirectory.toPath());
+        }
+
+        journal.setProperty(STATE_PROPERTY, State.STAGING.name());
+        journal.setProperty(MODS_DIRECTORY_PROPERTY, modsDirectory.getAbsolutePath());
+        storeJournal();
+        Files.createDirectories(stagingDirectory.toPath());
+
+        if (resume) {
+            // Keep only downloaded files and part files of unfinished downloads
+            File[] files = stagingDirectory.listFiles();
+            if (files != null) {
+                for (File stagedFile : files) {
+                    String name = stagedFile.getName();
+                    if (!name.endsWith(PART_FILE_SUFFIX) && journal.getProperty(DOWNLOADED_PREFIX + name) == null) {
+                        deleteRecursively(stagedFile.toPath());
+                    }
+                }
+            }
+        }
+
+        return stagingDirectory;
+    }
+
+    /**
+     * Reuses file already downloaded into staging directory by previous
+     * unfinished transaction.
+     *
+     * @param file file name
+     * @param hash expected hash or null if not known
+     * @return true if file with given hash is already staged
+     */
+    public synchronized boolean reuseDownloaded(String file, String hash) {
+        String stagedHash = journal.getProperty(DOWNLOADED_PREFIX + file);
+        if (stagedHash == null || !new File(stagingDirectory, file).isFile()) {
+            return false;
+        }
+
+        if (hash == null ? stagedHash.isEmpty() : hash.equals(stagedHash)) {
+            stagedFiles.add(file.toLowerCase());
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Records file downloaded into staging directory.
+     *
+     * @param file file name
+     * @param hash hash of the file or null if not known
+     * @throws IOException if journal cannot be written
+     */
+    public synchronized void recordDownloaded(String file, String hash) throws IOException {
+        journal.setProperty(DOWNLOADED_PREFIX + file, hash == null ? "" : hash);
+        stagedFiles.add(file.toLowerCase());
+        storeJournal();
+    }
+
+    /**
+     * Links or copies files of current mods directory into staging directory.
+     *
+     * @param excludedFiles names of files not to include (case insensitive)
+     * @throws IOException if staging fails
+     */
+    public void stageUnchangedFiles(Collection<String> excludedFiles) throws IOException {
+        Set<String> excluded = new HashSet<>();
+        for (String file : excludedFiles) {
+            excluded.add(file.toLowerCase());
+        }
+
+        File[] files = modsDirectory.listFiles();
+        if (files == null) {
+            throw new IOException("Unable to list directory " + modsDirectory);
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(PART_FILE_SUFFIX) || excluded.contains(name.toLowerCase())) {
+                continue;
+            }
+
+            linkRecursively(file.toPath(), new File(stagingDirectory, name).toPath());
+            synchronized (this) {
+                stagedFiles.add(name.toLowerCase());
+            }
+        }
+    }
+
+    /**
+     * Replaces mods directory with staging directory.
+     *
+     * Files not staged during this transaction are removed from staging
+     * directory first.
+     *
+     * @throws IOException if commit fails
+     */
+    public synchronized void commit() throws IOException {
+        File[] files = stagingDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!stagedFiles.contains(file.getName().toLowerCase())) {
+                    deleteRecursively(file.toPath());
+                }
+            }
+        }
+
+        journal.setProperty(STATE_PROPERTY, State.COMMITTING.name());
+        storeJournal();
+        finishCommit();
+    }
+
+    private void finishCommit() throws IOException {
+        File previousDirectory = getSiblingDirectory(modsDirectory, PREVIOUS_SUFFIX);
+        if (stagingDirectory.isDirectory()) {
+            if (modsDirectory.exists()) {
+                deleteRecursively(previousDirectory.toPath());
+                moveDirectory(modsDirectory, previousDirectory);
+            }
+            moveDirectory(stagingDirectory, modsDirectory);
+        }
+
+        deleteRecursively(previousDirectory.toPath());
+        journal.clear();
+        journalFile.delete();
+    }
+
+    public File getStagingDirectory() {
+        return stagingDirectory;
+    }
+
+    private State getState() {
+        String state = journal.getProperty(STATE_PROPERTY);
+        if (state == null) {
+            return null;
+        }
+
+        try {
+            return State.valueOf(state);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private boolean loadJournal() throws IOException {
+        journal.clear();
+        if (!journalFile.isFile()) {
+            return false;
+        }
+
+        try (InputStream journalInput = new FileInputStream(journalFile)) {
+            journal.load(journalInput);
+        }
+        return true;
+    }
+
+    private void storeJournal() throws IOException {
+        File tempFile = new File(journalFile.getPath() + ".tmp");
+        try (OutputStream journalOutput = new FileOutputStream(tempFile)) {
+            journal.store(journalOutput, "Minecart Updater Journal");
+        }
+
+        try {
+            Files.move(tempFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tempFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static File getSiblingDirectory(File directory, String suffix) {
+        return new File(directory.getAbsoluteFile().getParentFile(), directory.getName() + suffix);
+    }
+
+    private static void moveDirectory(File source, File target) throws IOException {
+        Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Creates hard link of the file or copy of it if links are not
+     * supported. Directories are recreated with linked content.
+     *
+     * @param source source path
+     * @param target target path
+     * @throws IOException if operation fails
+     */
+    public static void linkRecursively(final Path source, final Path target) throws IOException {
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                linkFile(file, target.resolve(source.relativize(file)));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Creates hard link of the file or copy of it if links are not
+     * supported.
+     *
+     * @param source source file
+     * @param target target file, replaced if exists
+     * @throws IOException if operation fails
+     */
+    public static void linkFile(Path source, Path target) throws IOException {
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, source);
+        } catch (UnsupportedOperationException | FileSystemException ex) {
+            Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+
+    public static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    public static enum State {
+        STAGING,
+        COMMITTING
+    }
+}
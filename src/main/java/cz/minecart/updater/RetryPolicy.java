@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.nio.file.FileSystemException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Policy for repeating of failed requests.
+ *
+ * Delay before next attempt grows exponentially up to maximum delay and
+ * random half of it is skipped, so that clients failed at the same time
+ * don't retry at the same time. Delay requested by server is respected
+ * unless it is too long to wait for.
+ *
+ * @author Minecart team
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+    public static final long DEFAULT_BASE_DELAY = 500;
+    public static final long DEFAULT_MAX_DELAY = 8000;
+    public static final long MAX_RETRY_AFTER = 30000;
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Random random = new Random();
+
+    public RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Creates policy.
+     *
+     * @param maxAttempts maximum count of attempts including the first one
+     * @param baseDelay delay after first attempt in milliseconds
+     * @param maxDelay maximum delay in milliseconds
+     */
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Returns true if failure is likely temporary.
+     *
+     * Missing resources, client errors and failures of local files are not
+     * repeated.
+     *
+     * @param ex failure
+     * @return true if request can be repeated
+     */
+    public boolean isRetryable(IOException ex) {
+        if (ex instanceof FileNotFoundException || isLocalFailure(ex)) {
+            return false;
+        }
+        if (ex instanceof InterruptedIOException && !(ex instanceof SocketTimeoutException)) {
+            return false;
+        }
+        if (ex instanceof HttpClient.HttpStatusException) {
+            int responseCode = ((HttpClient.HttpStatusException) ex).getResponseCode();
+            return responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT || responseCode == HTTP_TOO_MANY_REQUESTS || responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns true if failure is caused by local file, such as full disk or
+     * denied access, so that other servers would fail the same way.
+     *
+     * @param ex failure
+     * @return true if failure is not caused by network or server
+     */
+    public static boolean isLocalFailure(IOException ex) {
+        return ex instanceof DataTransfer.WriteException || ex instanceof FileSystemException;
+    }
+
+    /**
+     * Returns delay before next attempt.
+     *
+     * @param attempt number of failed attempt starting from 1
+     * @param ex failure of the attempt
+     * @return delay in milliseconds or -1 if request should not be repeated
+     */
+    public long getDelay(int attempt, IOException ex) {
+        if (attempt >= maxAttempts || !isRetryable(ex)) {
+            return -1;
+        }
+
+        long retryAfter = ex instanceof HttpClient.HttpStatusException ? ((HttpClient.HttpStatusException) ex).getRetryAfter() : -1;
+        if (retryAfter > MAX_RETRY_AFTER) {
+            return -1;
+        }
+
+        long backoff = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 20));
+        long delay;
+        synchronized (random) {
+            delay = backoff / 2 + (long) (random.nextDouble() * (backoff - backoff / 2));
+        }
+
+        return Math.max(delay, retryAfter);
+    }
+
+    /**
+     * Waits before next attempt.
+     *
+     * @param delay delay in milliseconds
+     * @throws InterruptedIOException if waiting was interrupted
+     */
+    public static void sleep(long delay) throws InterruptedIOException {
+        try {
+            TimeUnit.MILLISECONDS.sleep(delay);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Request which can be repeated.
+     *
+     * @param <T> type of result
+     */
+    public static interface Operation<T> {
+
+        /**
+         * Performs single attempt of the request.
+         *
+         * @return result
+         * @throws IOException if request fails
+         */
+        T perform() throws IOException;
+    }
+}
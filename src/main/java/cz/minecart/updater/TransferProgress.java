@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracking of downloaded bytes, transfer rate and remaining time.
+ *
+ * Expected count of bytes is taken from sizes listed in manifest and
+ * corrected by Content-Length of actual responses. Transfer rate is
+ * exponentially smoothed over samples taken at fixed interval.
+ *
+ * @author Minecart team
+ */
+public class TransferProgress implements DataTransfer.TransferListener {
+
+    private static final long SAMPLE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final double SMOOTHING_FACTOR = 0.3;
+
+    private final Updater.TransferProgressObserver observer;
+    private final AtomicLong expectedBytes = new AtomicLong();
+    private final AtomicLong transferredBytes = new AtomicLong();
+
+    private long lastSampleTime;
+    private long lastSampleBytes = 0;
+    private double bytesPerSecond = -1;
+
+    /**
+     * Creates progress tracking.
+     *
+     * @param observer observer notified from download threads or null
+     */
+    public TransferProgress(Updater.TransferProgressObserver observer) {
+        this.observer = observer;
+        lastSampleTime = System.nanoTime();
+    }
+
+    /**
+     * Adds count of bytes expected to be transferred.
+     *
+     * @param count count of bytes, negative value if less data is expected
+     */
+    public void addExpectedBytes(long count) {
+        expectedBytes.addAndGet(count);
+    }
+
+    @Override
+    public void bytesTransferred(long count) {
+        long transferred = transferredBytes.addAndGet(count);
+        boolean sampled = false;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long elapsed = now - lastSampleTime;
+            if (elapsed >= SAMPLE_INTERVAL) {
+                double sampleRate = (transferred - lastSampleBytes) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+                bytesPerSecond = bytesPerSecond < 0 ? sampleRate : SMOOTHING_FACTOR * sampleRate + (1 - SMOOTHING_FACTOR) * bytesPerSecond;
+                lastSampleTime = now;
+                lastSampleBytes = transferred;
+                sampled = true;
+            }
+        }
+
+        if (sampled && observer != null) {
+            observer.reportTransferProgress(this);
+        }
+    }
+
+    /**
+     * Reports change of the state of single file.
+     *
+     * @param file file name
+     * @param state new state
+     */
+    public void setFileState(String file, FileState state) {
+        if (observer != null) {
+            observer.reportFileState(file, state);
+            observer.reportTransferProgress(this);
+        }
+    }
+
+    /**
+     * Returns count of bytes expected to be transferred.
+     *
+     * @return count of bytes or -1 if not known
+     */
+    public long getExpectedBytes() {
+        long expected = expectedBytes.get();
+        return expected > 0 ? Math.max(expected, transferredBytes.get()) : -1;
+    }
+
+    public long getTransferredBytes() {
+        return transferredBytes.get();
+    }
+
+    /**
+     * Returns smoothed transfer rate.
+     *
+     * @return bytes per second or -1 if not yet known
+     */
+    public synchronized long getBytesPerSecond() {
+        return (long) bytesPerSecond;
+    }
+
+    /**
+     * Returns estimated remaining time of transfer.
+     *
+     * @return remaining time in seconds or -1 if not known
+     */
+    public long getRemainingSeconds() {
+        long expected = getExpectedBytes();
+        long rate = getBytesPerSecond();
+        if (expected < 0 || rate <= 0) {
+            return -1;
+        }
+
+        return (expected - transferredBytes.get() + rate - 1) / rate;
+    }
+
+    /**
+     * Returns transferred part of expected data.
+     *
+     * @return progress value (0 to 100) or -1 if not known
+     */
+    public int getProgress() {
+        long expected = getExpectedBytes();
+        if (expected < 0) {
+            return -1;
+        }
+
+        return (int) ((transferredBytes.get() * 100) / expected);
+    }
+
+    public static enum FileState {
+        DOWNLOADING,
+        COMPLETED,
+        FAILED
+    }
+}
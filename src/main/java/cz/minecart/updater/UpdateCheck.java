@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrent checking for updates performed on startup.
+ *
+ * News, application version check, download of the list of mods, scan of
+ * installed mods and ranking of download servers run in parallel. Update
+ * plan for mods is computed as soon as both the list of mods and the scan
+ * are available.
+ *
+ * @author Minecart team
+ */
+public class UpdateCheck {
+
+    private static final int THREADS_COUNT = 6;
+
+    private final ExecutorService executor;
+    private final Future<Updater.LoadNewsResult> newsResult;
+    private final Future<Updater.CheckAppUpdateResult> appUpdateResult;
+    private final Future<Updater.UpdatePlan> modsUpdatePlan;
+
+    private UpdateCheck(final Updater updater, final NewsListener newsListener) {
+        executor = Executors.newFixedThreadPool(THREADS_COUNT, new CheckThreadFactory());
+        newsResult = executor.submit(new Callable<Updater.LoadNewsResult>() {
+            @Override
+            public Updater.LoadNewsResult call() throws Exception {
+                Updater.LoadNewsResult result = updater.loadNewsContent();
+                if (newsListener != null) {
+                    newsListener.newsLoaded(result);
+                }
+                return result;
+            }
+        });
+        appUpdateResult = executor.submit(new Callable<Updater.CheckAppUpdateResult>() {
+            @Override
+            public Updater.CheckAppUpdateResult call() throws Exception {
+                return updater.checkForAppUpdate();
+            }
+        });
+        final Future<Updater.ModsManifestResult> manifestResult = executor.submit(new Callable<Updater.ModsManifestResult>() {
+            @Override
+            public Updater.ModsManifestResult call() throws Exception {
+                return updater.fetchModsManifest();
+            }
+        });
+        final Future<Updater.InstalledModsResult> installedModsResult = executor.submit(new Callable<Updater.InstalledModsResult>() {
+            @Override
+            public Updater.InstalledModsResult call() throws Exception {
+                return updater.scanInstalledMods();
+            }
+        });
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                updater.rankDownloadMirrors();
+            }
+        });
+        modsUpdatePlan = executor.submit(new Callable<Updater.UpdatePlan>() {
+            @Override
+            public Updater.UpdatePlan call() throws Exception {
+                return updater.computeModsUpdatePlan(manifestResult.get(), installedModsResult.get());
+            }
+        });
+        executor.shutdown();
+    }
+
+    /**
+     * Starts checking for updates.
+     *
+     * Server configuration must be already loaded.
+     *
+     * @param updater updater
+     * @param newsListener listener notified when news are loaded or null
+     * @return running check
+     */
+    public static UpdateCheck start(Updater updater, NewsListener newsListener) {
+        return new UpdateCheck(updater, newsListener);
+    }
+
+    public Updater.LoadNewsResult getNewsResult() throws InterruptedException {
+        try {
+            return newsResult.get();
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    public Updater.CheckAppUpdateResult getAppUpdateResult() throws InterruptedException {
+        try {
+            return appUpdateResult.get();
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    public Updater.UpdatePlan getModsUpdatePlan() throws InterruptedException {
+        try {
+            return modsUpdatePlan.get();
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    /**
+     * Cancels tasks which are still running.
+     */
+    public void cancel() {
+        executor.shutdownNow();
+    }
+
+    public static interface NewsListener {
+
+        /**
+         * Reports that loading of news finished.
+         *
+         * @param result result of loading
+         */
+        void newsLoaded(Updater.LoadNewsResult result);
+    }
+
+    private static class CheckThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadIndex = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "update-check-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
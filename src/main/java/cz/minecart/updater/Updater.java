@@ -16,30 +16,58 @@
 package cz.minecart.updater;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
 import java.util.ResourceBundle;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
+import javax.management.JMException;
 import org.json.simple.parser.ParseException;
 
 /**
@@ -49,6 +77,12 @@ import org.json.simple.parser.ParseException;
  */
 public class Updater {
 
+    /**
+     * System property with path to properties file overriding server
+     * configuration, for example to use local test server.
+     */
+    public static final String SERVER_CONFIGURATION_PROPERTY = "minecart.serverConfiguration";
+
     private final ResourceBundle updaterConfigurationBundle = ResourceBundle.getBundle("cz/minecart/updater/resources/UpdaterConfiguration");
     private final ResourceBundle serverConfiguration = ResourceBundle.getBundle("cz/minecart/updater/resources/ServerConfiguration");
     private final ResourceBundle updaterBundle = ResourceBundle.getBundle("cz/minecart/updater/resources/Updater");
@@ -59,7 +93,44 @@ public class Updater {
     private static final String PROFILE_PATH_AUTO_PROPERTY = "profilePathAuto";
     private static final String RUN_COMMAND_PROPERTY = "runCommand";
     private static final String RUN_COMMAND_AUTO_PROPERTY = "runCommandAuto";
+    private static final String DOWNLOAD_THREADS_PROPERTY = "downloadThreads";
+    private static final String CONNECT_TIMEOUT_PROPERTY = "connectTimeout";
+    private static final String READ_TIMEOUT_PROPERTY = "readTimeout";
+    private static final String MAX_CONNECTIONS_PER_HOST_PROPERTY = "maxConnectionsPerHost";
+    private static final String BLOB_CACHE_PATH_PROPERTY = "blobCachePath";
+    private static final String BLOB_CACHE_SIZE_LIMIT_PROPERTY = "blobCacheSizeLimit";
+    private static final String DOWNLOAD_RATE_LIMIT_PROPERTY = "downloadRateLimit";
+    private static final String DOWNLOAD_ORDER_PROPERTY = "downloadOrder";
+    private static final String RETRY_ATTEMPTS_PROPERTY = "retryAttempts";
+    private static final String DOWNLOAD_MIRRORS_COUNT_PROPERTY = "downloadMirrorsCount";
+    private static final String LAN_CACHE_URL_PROPERTY = "lanCacheUrl";
+    private static final String LAN_CACHE_DISCOVERY_PROPERTY = "lanCacheDiscovery";
+    private static final String LAN_CACHE_PORT_PROPERTY = "lanCachePort";
+    private static final String LAUNCHER_PROFILES_FILE_PROPERTY = "launcherProfilesFile";
+    private static final String LAUNCHER_PROFILES_MODIFIED_PROPERTY = "launcherProfilesModified";
+    private static final String LAUNCHER_PROFILES_SIZE_PROPERTY = "launcherProfilesSize";
+    private static final String LAUNCHER_PROFILE_NAME_PROPERTY = "launcherProfileName";
+    private static final String LAUNCHER_PROFILE_GAME_DIR_PROPERTY = "launcherProfileGameDir";
     private static final String MOD_RECORD_PREFIX = "mod_";
+    private static final String PART_FILE_SUFFIX = ModsTransaction.PART_FILE_SUFFIX;
+    private static final String DELTA_FILE_SUFFIX = ".delta";
+    private static final String PATCHED_FILE_SUFFIX = ".patched";
+    private static final String DELTAS_DIRECTORY = "deltas";
+    private static final String JOURNAL_FILE_NAME = "minecart-updater.journal";
+    private static final String MIRRORS_FILE_NAME = "minecart-updater.mirrors";
+    private static final String METRICS_FILE_NAME = "minecart-updater-metrics.json";
+    private static final String TARGET_JOURNAL_FILE_PREFIX = "minecart-updater-";
+    private static final String JOURNAL_FILE_SUFFIX = ".journal";
+    private static final String INDEX_FILE_PREFIX = "minecart-updater-";
+    private static final String INDEX_FILE_SUFFIX = ".index";
+    private static final String PROFILE_TARGET_PREFIX = "profileTarget_";
+    private static final String HTTP_CACHE_DIRECTORY_NAME = "minecart-updater-cache" + File.separator + "http";
+    private static final String PREFETCH_DIRECTORY_NAME = "minecart-updater-cache" + File.separator + "downloads";
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final int DOWNLOAD_VERIFY_ATTEMPTS = 2;
+    private static final long KILOBYTE = 1024;
+    private static final long MEGABYTE = 1024 * 1024;
 
     private OsType osType = OsType.LINUX;
     private String applicationVersion;
@@ -69,9 +140,14 @@ public class Updater {
     private URL appDownloadUrl;
     private URL websiteUrl;
     private URL filesUpdateUrl;
+    private URL legacyFilesUpdateUrl;
     private URL forgeUpdateUrl;
-    private URL updateDownloadUrl;
+    private final List<URL> updateDownloadUrls = new ArrayList<>();
+    private String downloadProbePath = null;
+    private MirrorRanking downloadMirrorRanking = null;
+    private final Object downloadMirrorsLock = new Object();
     private String profileName;
+    private Properties serverConfigurationOverride = null;
 
     private final Properties config = new Properties();
     private File configFile;
@@ -82,13 +158,42 @@ public class Updater {
     private boolean profilePathAuto;
     private String runCommand;
     private boolean runCommandAuto;
+    private int downloadThreads = ModsDownloader.DEFAULT_THREADS_COUNT;
+    private int connectTimeout = HttpClient.DEFAULT_CONNECT_TIMEOUT;
+    private int readTimeout = HttpClient.DEFAULT_READ_TIMEOUT;
+    private int maxConnectionsPerHost = HttpClient.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private String blobCachePath;
+    private long blobCacheSizeLimit = BlobCache.DEFAULT_SIZE_LIMIT;
+    private int downloadRateLimit = 0;
+    private DownloadOrder downloadOrder = DownloadOrder.MANIFEST;
+    private int retryAttempts = RetryPolicy.DEFAULT_MAX_ATTEMPTS;
+    private int downloadMirrorsCount = 1;
+    private String lanCacheAddress = "";
+    private boolean lanCacheDiscovery = false;
+    private int lanCachePort = LanCacheServer.DEFAULT_PORT;
 
     private VersionNumbers updateVersion;
-    private Set<String> currentFiles = null;
+    private volatile boolean modRecordsImported = false;
+    private volatile File mainIndexFile = null;
+    private volatile LauncherProfiles.Profile launcherProfile = null;
     private String newsContent = null;
     private final Set<String> modsFiles = new HashSet<>();
 
+    private ModsTransaction modsTransaction;
+    private HttpClient httpClient;
+    private HttpResponseCache httpCache;
+    private BlobCache blobCache;
+    private BandwidthLimiter bandwidthLimiter = null;
+    private RetryPolicy retryPolicy;
+    private final UpdaterMetrics metrics = new UpdaterMetrics();
+    private ModsDirectoryWatcher modsDirectoryWatcher = null;
+    private URL lanCacheUrl = null;
+    private boolean lanCacheResolved = false;
+    private final Object lanCacheLock = new Object();
+    private LanCacheServer lanCacheServer = null;
+
     private LogListener logListener = null;
+    private ModsDirectoryWatcher.ChangeListener modsDirectoryListener = null;
 
     public void init() {
         // Detect operating system type
@@ -104,191 +209,702 @@ public class Updater {
         applicationVersion = updaterConfigurationBundle.getString("Application.version");
 
         loadConfiguration();
+        try {
+            metrics.register();
+        } catch (JMException ex) {
+            Logger.getLogger(Updater.class.getName()).log(Level.WARNING, null, ex);
+        }
+        httpClient = new HttpClient(connectTimeout, readTimeout, maxConnectionsPerHost);
+        retryPolicy = new RetryPolicy(retryAttempts, RetryPolicy.DEFAULT_BASE_DELAY, RetryPolicy.DEFAULT_MAX_DELAY);
+        httpCache = new HttpResponseCache(new File(configFile.getAbsoluteFile().getParentFile(), HTTP_CACHE_DIRECTORY_NAME), httpClient);
+        blobCache = new BlobCache(blobCachePath.isEmpty() ? BlobCache.getDefaultDirectory(osType) : new File(blobCachePath), blobCacheSizeLimit);
+        if (downloadRateLimit > 0) {
+            bandwidthLimiter = new BandwidthLimiter(downloadRateLimit * KILOBYTE);
+            log(Level.INFO, updaterBundle.getString("downloadRateLimited") + downloadRateLimit);
+        }
+        recoverModsUpdate();
     }
 
-    public LoadNewsResult loadNewsContent() {
-        try (InputStream newsStream = newsUrl.openStream()) {
-            ByteArrayOutputStream result = new ByteArrayOutputStream();
-            byte[] buffer = new byte[1024];
-            int length;
-            do {
-                length = newsStream.read(buffer);
-
-                if (length >= 0) {
-                    result.write(buffer, 0, length);
+    /**
+     * Finishes mods update interrupted by crash of previous run.
+     */
+    private void recoverModsUpdate() {
+        File configDirectory = configFile.getAbsoluteFile().getParentFile();
+        modsTransaction = new ModsTransaction(new File(configDirectory, JOURNAL_FILE_NAME));
+        recoverModsUpdate(modsTransaction);
+
+        // Journals of updates of profile targets
+        File[] journalFiles = configDirectory.listFiles();
+        if (journalFiles != null) {
+            for (File journalFile : journalFiles) {
+                String fileName = journalFile.getName();
+                if (fileName.startsWith(TARGET_JOURNAL_FILE_PREFIX) && fileName.endsWith(JOURNAL_FILE_SUFFIX)) {
+                    recoverModsUpdate(new ModsTransaction(journalFile));
                 }
-            } while (length >= 0);
+            }
+        }
+    }
 
-            newsContent = result.toString("UTF-8");
-            log(Level.INFO, updaterBundle.getString("newsContentLoaded"));
-            return LoadNewsResult.OK;
-        } catch (UnsupportedEncodingException ex) {
-            Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
+    private void recoverModsUpdate(ModsTransaction transaction) {
+        try {
+            ModsTransaction.State recoveredState = transaction.recover();
+            if (recoveredState == ModsTransaction.State.COMMITTING) {
+                log(Level.WARNING, updaterBundle.getString("interruptedUpdateFinished"));
+            } else if (recoveredState == ModsTransaction.State.STAGING) {
+                log(Level.WARNING, updaterBundle.getString("interruptedUpdateFound"));
+            }
         } catch (IOException ex) {
             Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
         }
+    }
+
+    /**
+     * Returns transaction for update of mods directory of profile target.
+     *
+     * Each target has its own journal so that targets can be updated in
+     * parallel.
+     *
+     * @param profileModsDir mods directory of target
+     * @return transaction
+     */
+    private ModsTransaction getTargetTransaction(File profileModsDir) {
+        return new ModsTransaction(new File(configFile.getAbsoluteFile().getParentFile(), TARGET_JOURNAL_FILE_PREFIX + getModsDirectoryKey(profileModsDir) + JOURNAL_FILE_SUFFIX));
+    }
+
+    /**
+     * Loads index of files installed in mods directory.
+     *
+     * Index of main profile which doesn't exist yet is created from mod
+     * records of previous versions of configuration file. Records were kept
+     * only for main profile, index of other target starts empty.
+     *
+     * @param profileModsDir mods directory
+     * @param mainProfile true for mods directory of main profile
+     * @return index
+     * @throws IOException if reading fails
+     */
+    private InstalledFilesIndex loadInstalledFilesIndex(File profileModsDir, boolean mainProfile) throws IOException {
+        File indexFile = new File(configFile.getAbsoluteFile().getParentFile(), INDEX_FILE_PREFIX + getModsDirectoryKey(profileModsDir) + INDEX_FILE_SUFFIX);
+        InstalledFilesIndex index;
+        try {
+            index = InstalledFilesIndex.load(indexFile);
+        } catch (IOException ex) {
+            // Damaged index is rebuilt, files are hashed again
+            Logger.getLogger(Updater.class.getName()).log(Level.WARNING, null, ex);
+            Files.delete(indexFile.toPath());
+            index = InstalledFilesIndex.load(indexFile);
+        }
+
+        if (mainProfile) {
+            mainIndexFile = indexFile;
+        }
+        if (mainProfile && !indexFile.isFile()) {
+            for (String mod : getModRecords()) {
+                index.put(mod, -1, -1, null);
+            }
+        }
 
-        return LoadNewsResult.FAILED;
+        return index;
     }
 
-    public CheckAppUpdateResult checkForAppUpdate() {
-        if (checkUpdateUrl == null) {
-            return CheckAppUpdateResult.UPDATE_URL_NOT_SET;
+    /**
+     * Starts watching of mods directory of profile, stops watching of
+     * previously watched directory.
+     *
+     * @param profileModsDir mods directory
+     */
+    private synchronized void watchModsDirectory(File profileModsDir) {
+        File modsDirectory = profileModsDir.getAbsoluteFile();
+        if (modsDirectoryWatcher != null) {
+            if (modsDirectoryWatcher.isValid() && modsDirectoryWatcher.getModsDirectory().equals(modsDirectory)) {
+                return;
+            }
+            modsDirectoryWatcher.close();
+            modsDirectoryWatcher = null;
+        }
+
+        if (modsDirectory.isDirectory()) {
+            try {
+                modsDirectoryWatcher = ModsDirectoryWatcher.start(modsDirectory, modsDirectoryListener);
+            } catch (IOException ex) {
+                // Directory will be listed on each check
+                Logger.getLogger(Updater.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+    }
+
+    private synchronized ModsDirectoryWatcher getModsDirectoryWatcher(File profileModsDir) {
+        if (modsDirectoryWatcher != null && modsDirectoryWatcher.getModsDirectory().equals(profileModsDir.getAbsoluteFile())) {
+            return modsDirectoryWatcher;
+        }
+
+        return null;
+    }
+
+    /**
+     * Stops watching of mods directory.
+     *
+     * @param profileModsDir mods directory
+     * @return true if directory was watched
+     */
+    private synchronized boolean stopWatchingModsDirectory(File profileModsDir) {
+        ModsDirectoryWatcher watcher = getModsDirectoryWatcher(profileModsDir);
+        if (watcher == null) {
+            return false;
         }
 
+        watcher.close();
+        modsDirectoryWatcher = null;
+        return true;
+    }
+
+    private static String getModsDirectoryKey(File profileModsDir) {
         try {
-            try (InputStream checkUpdateStream = checkUpdateUrl.openStream(); BufferedReader reader = new BufferedReader(new InputStreamReader(checkUpdateStream))) {
-                String line = reader.readLine();
-                if (line == null) {
-                    return CheckAppUpdateResult.NOT_FOUND;
-                }
-                updateVersion = new VersionNumbers();
-                log(Level.INFO, updaterBundle.getString("availableApplicationVersion") + line);
-                updateVersion.versionFromString(line);
+            return Checksums.toHex(Checksums.createSha256Digest().digest(profileModsDir.getAbsolutePath().getBytes("UTF-8"))).substring(0, 16);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public LoadNewsResult loadNewsContent() {
+        long phaseStartTime = System.nanoTime();
+        try {
+            try {
+                newsContent = new String(fetchContent(newsUrl), "UTF-8");
+                log(Level.INFO, updaterBundle.getString("newsContentLoaded"));
+                return LoadNewsResult.OK;
+            } catch (UnsupportedEncodingException ex) {
+                Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
+            } catch (IOException ex) {
+                Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
             }
 
-            // Compare versions
-            if (updateVersion.isGreaterThan(getVersionNumbers())) {
-                return CheckAppUpdateResult.UPDATE_FOUND;
+            return LoadNewsResult.FAILED;
+        } finally {
+            metrics.addPhaseTime(UpdaterMetrics.Phase.NEWS, phaseStartTime);
+        }
+    }
+
+    /**
+     * Downloads content of small resource, failed request is repeated.
+     *
+     * @param url URL
+     * @return content
+     * @throws IOException if all attempts fail
+     */
+    private byte[] fetchContent(final URL url) throws IOException {
+        return performWithRetry(new RetryPolicy.Operation<byte[]>() {
+            @Override
+            public byte[] perform() throws IOException {
+                return readContent(url);
             }
+        });
+    }
 
-            return CheckAppUpdateResult.NO_UPDATE_AVAILABLE;
-        } catch (FileNotFoundException ex) {
-            Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
-            return CheckAppUpdateResult.NOT_FOUND;
-        } catch (IOException ex) {
-            Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
-            return CheckAppUpdateResult.CONNECTION_ISSUE;
-        } catch (Exception ex) {
-            Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
-            return CheckAppUpdateResult.CONNECTION_ISSUE;
+    /**
+     * Downloads content of small resource in single attempt.
+     *
+     * @param url URL
+     * @return content
+     * @throws IOException if request fails
+     */
+    private byte[] readContent(URL url) throws IOException {
+        try (ReadableByteChannel channel = Channels.newChannel(httpCache.openStream(url))) {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            DataTransfer.transfer(channel, Channels.newChannel(result), null);
+            return result.toByteArray();
         }
     }
 
-    public UpdatePlan checkForModsUpdate() {
-        if (filesUpdateUrl == null) {
-            return new UpdatePlan(CheckModsUpdateResult.UPDATE_URL_NOT_SET, null);
+    /**
+     * Performs request, repeating it according to retry policy.
+     *
+     * @param <T> type of result
+     * @param operation request
+     * @return result
+     * @throws IOException failure of the last attempt
+     */
+    private <T> T performWithRetry(RetryPolicy.Operation<T> operation) throws IOException {
+        int attempt = 1;
+        while (true) {
+            try {
+                return operation.perform();
+            } catch (IOException ex) {
+                // Download not matching expected hash was already repeated
+                long delay = ex instanceof FileVerificationException ? -1 : retryPolicy.getDelay(attempt, ex);
+                if (delay < 0) {
+                    throw ex;
+                }
+                metrics.addRetry();
+                log(Level.WARNING, updaterBundle.getString("requestRetried") + delay + " ms: " + ex.getMessage());
+                RetryPolicy.sleep(delay);
+            }
+            attempt++;
         }
+    }
 
-        modsFiles.clear();
+    public CheckAppUpdateResult checkForAppUpdate() {
+        long phaseStartTime = System.nanoTime();
         try {
-            try (InputStream checkUpdateStream = filesUpdateUrl.openStream(); BufferedReader reader = new BufferedReader(new InputStreamReader(checkUpdateStream))) {
-                String line = reader.readLine();
-                while (line != null && !line.isEmpty()) {
-                    modsFiles.add(line);
-                    line = reader.readLine();
+            if (checkUpdateUrl == null) {
+                return CheckAppUpdateResult.UPDATE_URL_NOT_SET;
+            }
+
+            try {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(fetchContent(checkUpdateUrl))))) {
+                    String line = reader.readLine();
+                    if (line == null) {
+                        return CheckAppUpdateResult.NOT_FOUND;
+                    }
+                    updateVersion = new VersionNumbers();
+                    log(Level.INFO, updaterBundle.getString("availableApplicationVersion") + line);
+                    updateVersion.versionFromString(line);
                 }
-                if (modsFiles.isEmpty()) {
-                    log(Level.WARNING, updaterBundle.getString("listOfModsIsEmpty"));
-                    return new UpdatePlan(CheckModsUpdateResult.NOT_FOUND, null);
+
+                // Compare versions
+                if (updateVersion.isGreaterThan(getVersionNumbers())) {
+                    return CheckAppUpdateResult.UPDATE_FOUND;
                 }
+
+                return CheckAppUpdateResult.NO_UPDATE_AVAILABLE;
+            } catch (FileNotFoundException ex) {
+                Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
+                return CheckAppUpdateResult.NOT_FOUND;
+            } catch (IOException ex) {
+                Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
+                return CheckAppUpdateResult.CONNECTION_ISSUE;
+            } catch (Exception ex) {
+                Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
+                return CheckAppUpdateResult.CONNECTION_ISSUE;
             }
+        } finally {
+            metrics.addPhaseTime(UpdaterMetrics.Phase.APP_UPDATE, phaseStartTime);
+        }
+    }
 
-            // Compare list of mods
-            Set<String> installedMods = new HashSet<>();
-            Set<String> downloadMods = new HashSet<>();
-            Set<String> deleteMods = new HashSet<>();
-            Set<String> remoteMods = new HashSet<>();
-            currentFiles = getModRecords();
+    public UpdatePlan checkForModsUpdate() {
+        return computeModsUpdatePlan(fetchModsManifest(), scanInstalledMods());
+    }
 
-            ProfilePathResult profilePathResult = buildProfilePath();
-            String resultProfilePath = profilePathResult.profilePath;
-            if (resultProfilePath == null) {
-                return new UpdatePlan(CheckModsUpdateResult.NO_TARGET_DIRECTORY, profilePathResult.errorMessage);
+    /**
+     * Downloads list of mods published on server.
+     *
+     * @return manifest or failed update plan
+     */
+    public ModsManifestResult fetchModsManifest() {
+        long phaseStartTime = System.nanoTime();
+        try {
+            if (filesUpdateUrl == null) {
+                return new ModsManifestResult(null, new UpdatePlan(CheckModsUpdateResult.UPDATE_URL_NOT_SET, null));
             }
 
-            String profileModsDir = resultProfilePath + File.separator + "mods";
-            if (!new File(profileModsDir).exists()) {
-                return new UpdatePlan(CheckModsUpdateResult.NO_TARGET_MOD_DIRECTORY, null);
+            try {
+                ModsManifest modsManifest = ModsManifest.read(new ByteArrayInputStream(fetchModsManifestContent()));
+                if (modsManifest.isEmpty()) {
+                    log(Level.WARNING, updaterBundle.getString("listOfModsIsEmpty"));
+                    return new ModsManifestResult(null, new UpdatePlan(CheckModsUpdateResult.NOT_FOUND, null));
+                }
+
+                return new ModsManifestResult(modsManifest, null);
+            } catch (FileNotFoundException ex) {
+                Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
+                return new ModsManifestResult(null, new UpdatePlan(CheckModsUpdateResult.NOT_FOUND, null));
+            } catch (IOException ex) {
+                Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
+                return new ModsManifestResult(null, new UpdatePlan(CheckModsUpdateResult.CONNECTION_ISSUE, null));
             }
+        } finally {
+            metrics.addPhaseTime(UpdaterMetrics.Phase.MANIFEST, phaseStartTime);
+        }
+    }
 
-            // List installed mods
-            File modsDirectory = new File(profileModsDir);
-            for (File modFile : modsDirectory.listFiles()) {
-                installedMods.add(modFile.getName().toLowerCase());
+    /**
+     * Downloads content of list of mods.
+     *
+     * List in legacy format is used if versioned list is not published on
+     * server.
+     *
+     * @return content of list
+     * @throws IOException if download fails
+     */
+    private byte[] fetchModsManifestContent() throws IOException {
+        try {
+            return fetchContent(filesUpdateUrl);
+        } catch (FileNotFoundException ex) {
+            if (legacyFilesUpdateUrl == null) {
+                throw ex;
             }
 
-            // Add missing mods to download list
-            for (String mod : modsFiles) {
-                remoteMods.add(mod.toLowerCase());
-                if (!installedMods.contains(mod.toLowerCase())) {
-                    downloadMods.add(mod);
+            log(Level.WARNING, updaterBundle.getString("legacyModsListInUse") + legacyFilesUpdateUrl);
+            return fetchContent(legacyFilesUpdateUrl);
+        }
+    }
+
+    /**
+     * Returns URL of updater serving as cache in local network.
+     *
+     * Configured address is used, otherwise cache is searched for by
+     * broadcast if discovery is enabled. Result is resolved only once.
+     *
+     * @return base URL of cache or null if not available
+     */
+    private URL getLanCacheUrl() {
+        synchronized (lanCacheLock) {
+            if (lanCacheServer != null) {
+                return null;
+            }
+            if (!lanCacheResolved) {
+                lanCacheResolved = true;
+                if (!lanCacheAddress.isEmpty()) {
+                    try {
+                        lanCacheUrl = new URL(lanCacheAddress.endsWith("/") ? lanCacheAddress : lanCacheAddress + "/");
+                    } catch (MalformedURLException ex) {
+                        Logger.getLogger(Updater.class.getName()).log(Level.WARNING, null, ex);
+                    }
+                } else if (lanCacheDiscovery) {
+                    lanCacheUrl = LanCacheServer.discover(lanCachePort, LanCacheServer.DISCOVERY_TIMEOUT);
+                    if (lanCacheUrl != null) {
+                        log(Level.INFO, updaterBundle.getString("lanCacheDiscovered") + lanCacheUrl);
+                    }
                 }
             }
 
-            // Add mods which are no longer needed to delete list
-            for (String mod : currentFiles) {
-                File targetFile = new File(profileModsDir + File.separator + mod);
-                if (targetFile.exists() && !remoteMods.contains(mod.toLowerCase())) {
-                    deleteMods.add(mod);
+            return lanCacheUrl;
+        }
+    }
+
+    /**
+     * Stops using local network cache after it failed.
+     *
+     * @param cacheUrl URL of failed cache
+     * @param ex failure
+     */
+    private void disableLanCache(URL cacheUrl, IOException ex) {
+        log(Level.WARNING, updaterBundle.getString("lanCacheFailed") + cacheUrl + ": " + ex.getMessage());
+        synchronized (lanCacheLock) {
+            lanCacheUrl = null;
+        }
+    }
+
+    /**
+     * Starts serving list of mods and mod files to other updaters in local
+     * network.
+     *
+     * Files are downloaded from server on first request and kept in local
+     * cache. Local network cache is not used while serving.
+     *
+     * @return running server
+     * @throws IOException if server cannot be started
+     */
+    public LanCacheServer startLanCacheServer() throws IOException {
+        synchronized (lanCacheLock) {
+            if (lanCacheServer != null) {
+                return lanCacheServer;
+            }
+
+            LanCacheServer server = new LanCacheServer(lanCachePort, new LanCacheServer.Origin() {
+                @Override
+                public byte[] fetchModsManifest() throws IOException {
+                    if (filesUpdateUrl == null) {
+                        throw new FileNotFoundException("Mods list URL not set");
+                    }
+                    return fetchModsManifestContent();
                 }
+
+                @Override
+                public File fetchModFile(ModsManifest.Entry entry) throws IOException {
+                    blobCache.pin(entry.getHash());
+                    try {
+                        return fetchToBlobCache(entry);
+                    } catch (IOException | RuntimeException ex) {
+                        blobCache.unpin(entry.getHash());
+                        throw ex;
+                    }
+                }
+
+                @Override
+                public void releaseModFile(ModsManifest.Entry entry) {
+                    blobCache.unpin(entry.getHash());
+                }
+            });
+            server.start();
+            lanCacheServer = server;
+            lanCacheUrl = null;
+            log(Level.INFO, updaterBundle.getString("lanCacheStarted") + lanCachePort);
+            return server;
+        }
+    }
+
+    /**
+     * Stops serving local network.
+     */
+    public void stopLanCacheServer() {
+        synchronized (lanCacheLock) {
+            if (lanCacheServer != null) {
+                lanCacheServer.stop();
+                lanCacheServer = null;
             }
+        }
+    }
+
+    /**
+     * Returns file from local cache, downloading it from server if missing.
+     *
+     * @param entry manifest entry of file with hash
+     * @return cached file
+     * @throws IOException if download fails or file cannot be cached
+     */
+    private File fetchToBlobCache(ModsManifest.Entry entry) throws IOException {
+        File cachedFile = blobCache.get(entry.getHash(), entry.getSize());
+        if (cachedFile != null) {
+            return cachedFile;
+        }
+
+        File prefetchDirectory = new File(configFile.getAbsoluteFile().getParentFile(), PREFETCH_DIRECTORY_NAME);
+        Files.createDirectories(prefetchDirectory.toPath());
+        File targetFile = new File(prefetchDirectory, entry.getHash());
+        TransferProgress transferProgress = new TransferProgress(null);
+        transferProgress.addExpectedBytes(Math.max(entry.getSize(), 0));
+        try {
+            downloadModFile(encodeFileName(entry.getName()), targetFile, transferProgress, entry.getSize(), entry.getHash());
+            metrics.addPrefetchedFile();
+            storeToBlobCache(entry.getHash(), targetFile);
+        } finally {
+            targetFile.delete();
+        }
+        log(Level.INFO, updaterBundle.getString("lanCacheFileDownloaded") + entry.getName());
+
+        cachedFile = blobCache.get(entry.getHash(), entry.getSize());
+        if (cachedFile == null) {
+            throw new IOException("File was not stored to cache: " + entry.getName());
+        }
+        return cachedFile;
+    }
+
+    /**
+     * Resolves profile directory and lists mods installed in it.
+     *
+     * @return installed mods or failed update plan
+     */
+    public InstalledModsResult scanInstalledMods() {
+        ProfilePathResult profilePathResult = buildProfilePath();
+        String resultProfilePath = profilePathResult.profilePath;
+        if (resultProfilePath == null) {
+            return new InstalledModsResult(null, null, new UpdatePlan(CheckModsUpdateResult.NO_TARGET_DIRECTORY, profilePathResult.errorMessage));
+        }
+
+        if (modsDirectoryListener != null) {
+            watchModsDirectory(new File(resultProfilePath + File.separator + "mods"));
+        }
+        return scanInstalledMods(resultProfilePath, true);
+    }
+
+    /**
+     * Lists mods installed in given profile directory other than main
+     * profile.
+     *
+     * @param resultProfilePath profile directory
+     * @return installed mods or failed update plan
+     */
+    public InstalledModsResult scanInstalledMods(String resultProfilePath) {
+        return scanInstalledMods(resultProfilePath, false);
+    }
 
-            if (!downloadMods.isEmpty() || !deleteMods.isEmpty()) {
-                log(Level.WARNING, updaterBundle.getString("modsToDownloadCount") + downloadMods.size());
-                log(Level.WARNING, updaterBundle.getString("modsToDeleteCount") + deleteMods.size());
-                return new UpdatePlan(CheckModsUpdateResult.UPDATE_FOUND, resultProfilePath, downloadMods, deleteMods);
+    private InstalledModsResult scanInstalledMods(String resultProfilePath, boolean mainProfile) {
+        long phaseStartTime = System.nanoTime();
+        try {
+            File modsDirectory = new File(resultProfilePath + File.separator + "mods");
+            if (!modsDirectory.isDirectory()) {
+                return new InstalledModsResult(null, null, new UpdatePlan(CheckModsUpdateResult.NO_TARGET_MOD_DIRECTORY, null));
             }
 
-            return new UpdatePlan(CheckModsUpdateResult.NO_UPDATE_AVAILABLE, null);
-        } catch (FileNotFoundException ex) {
-            Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
-            return new UpdatePlan(CheckModsUpdateResult.NOT_FOUND, null);
+            // Attributes are read together with the directory listing, watched directory doesn't need to be listed
+            Map<String, File> installedMods = new HashMap<>();
+            Map<String, BasicFileAttributes> installedModsAttributes = new HashMap<>();
+            InstalledFilesIndex installedFilesIndex;
+            try {
+                ModsDirectoryWatcher watcher = getModsDirectoryWatcher(modsDirectory);
+                if (watcher == null || !watcher.copyFiles(installedMods, installedModsAttributes)) {
+                    ModsDirectoryWatcher.listFiles(modsDirectory, installedMods, installedModsAttributes);
+                }
+                installedFilesIndex = loadInstalledFilesIndex(modsDirectory, mainProfile);
+            } catch (IOException ex) {
+                Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
+                return new InstalledModsResult(null, null, new UpdatePlan(CheckModsUpdateResult.NO_TARGET_MOD_DIRECTORY, null));
+            }
+
+            InstalledModsResult result = new InstalledModsResult(resultProfilePath, installedMods, null);
+            result.installedModsAttributes = installedModsAttributes;
+            result.installedFilesIndex = installedFilesIndex;
+            return result;
+        } finally {
+            metrics.addPhaseTime(UpdaterMetrics.Phase.SCAN, phaseStartTime);
+        }
+    }
+
+    /**
+     * Compares list of mods on server with installed mods.
+     *
+     * @param manifestResult result of manifest download
+     * @param installedModsResult result of installed mods scan
+     * @return update plan
+     */
+    public UpdatePlan computeModsUpdatePlan(ModsManifestResult manifestResult, InstalledModsResult installedModsResult) {
+        long phaseStartTime = System.nanoTime();
+        UpdatePlan updatePlan = compareModsLists(manifestResult, installedModsResult);
+        metrics.addPhaseTime(UpdaterMetrics.Phase.PLAN, phaseStartTime);
+        metrics.setLastResult(updatePlan.resultType.name());
+        return updatePlan;
+    }
+
+    private UpdatePlan compareModsLists(ModsManifestResult manifestResult, InstalledModsResult installedModsResult) {
+        if (manifestResult.failedPlan != null) {
+            return manifestResult.failedPlan;
+        }
+        if (installedModsResult.failedPlan != null) {
+            return installedModsResult.failedPlan;
+        }
+
+        ModsManifest modsManifest = manifestResult.modsManifest;
+        String resultProfilePath = installedModsResult.profilePath;
+        Map<String, File> installedMods = installedModsResult.installedMods;
+        InstalledFilesIndex installedFilesIndex = installedModsResult.installedFilesIndex;
+        installedFilesIndex.retain(installedMods.keySet());
+        modsFiles.clear();
+        for (ModsManifest.Entry entry : modsManifest.getEntries()) {
+            modsFiles.add(entry.getName());
+        }
+
+        // Compare list of mods
+        Set<String> downloadMods = new HashSet<>();
+        Set<String> deleteMods = new HashSet<>();
+        Set<String> remoteMods = new HashSet<>();
+        try {
+            // Add missing or changed mods to download list
+            for (ModsManifest.Entry entry : modsManifest.getEntries()) {
+                String mod = entry.getName();
+                remoteMods.add(mod.toLowerCase());
+                File installedFile = installedMods.get(mod.toLowerCase());
+                if (installedFile == null || !isInstalledModCurrent(installedFile, installedModsResult.installedModsAttributes.get(mod.toLowerCase()), entry, installedFilesIndex)) {
+                    downloadMods.add(mod);
+                }
+            }
         } catch (IOException ex) {
             Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
             return new UpdatePlan(CheckModsUpdateResult.CONNECTION_ISSUE, null);
         }
+
+        // Add mods which are no longer needed to delete list
+        for (String mod : installedFilesIndex.getFileNames()) {
+            if (!remoteMods.contains(mod.toLowerCase())) {
+                deleteMods.add(mod);
+            }
+        }
+
+        saveInstalledFilesIndex(installedFilesIndex);
+
+        if (!downloadMods.isEmpty() || !deleteMods.isEmpty()) {
+            log(Level.WARNING, updaterBundle.getString("modsToDownloadCount") + downloadMods.size());
+            log(Level.WARNING, updaterBundle.getString("modsToDeleteCount") + deleteMods.size());
+            UpdatePlan updatePlan = new UpdatePlan(CheckModsUpdateResult.UPDATE_FOUND, resultProfilePath, downloadMods, deleteMods);
+            updatePlan.modsManifest = modsManifest;
+            updatePlan.installedFilesIndex = installedFilesIndex;
+            return updatePlan;
+        }
+
+        return new UpdatePlan(CheckModsUpdateResult.NO_UPDATE_AVAILABLE, null);
     }
 
-    private ProfilePathResult buildProfilePath() {
-        String resultProfilePath = null;
-        if (profilePathAuto) {
-            JSONParser parser = new JSONParser();
-            String resultGamePath = buildGamePath();
-            log(Level.INFO, updaterBundle.getString("pathToConfiguration") + resultGamePath);
-            File profilesFile = new File(resultGamePath + File.separator + "launcher_profiles.json");
-            if (!profilesFile.exists()) {
-                return new ProfilePathResult(null, updaterBundle.getString("profilesFileNotFound"));
+    /**
+     * Checks whether installed file matches manifest entry.
+     *
+     * Files listed in legacy manifest without hash are matched by name only.
+     * Hash of file is computed only if file was modified since it was
+     * recorded in index.
+     *
+     * @param installedFile installed file
+     * @param attributes attributes of installed file
+     * @param entry manifest entry
+     * @param installedFilesIndex index of installed files
+     * @return true if installed file is up-to-date
+     * @throws IOException if reading of installed file fails
+     */
+    private boolean isInstalledModCurrent(File installedFile, BasicFileAttributes attributes, ModsManifest.Entry entry, InstalledFilesIndex installedFilesIndex) throws IOException {
+        if (!entry.hasHash()) {
+            return true;
+        }
+
+        long size = attributes.size();
+        if (entry.getSize() >= 0 && size != entry.getSize()) {
+            return false;
+        }
+
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String hash = installedFilesIndex.getHash(entry.getName(), size, lastModified);
+        if (hash == null) {
+            hash = Checksums.sha256(installedFile);
+            installedFilesIndex.put(entry.getName(), size, lastModified, hash);
+        }
+
+        return entry.getHash().equals(hash);
+    }
+
+    private void saveInstalledFilesIndex(InstalledFilesIndex installedFilesIndex) {
+        try {
+            installedFilesIndex.save();
+            // Mod records are kept until they are stored in index of main profile
+            if (installedFilesIndex.getIndexFile().equals(mainIndexFile)) {
+                modRecordsImported = true;
             }
+        } catch (IOException ex) {
+            Logger.getLogger(Updater.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
 
-            try {
-                FileReader fileReader = new FileReader(profilesFile);
-                JSONObject profileFile = (JSONObject) parser.parse(fileReader);
-                JSONObject profiles = (JSONObject) profileFile.get("profiles");
-                JSONObject minecartProfile = null;
-                minecartProfile = (JSONObject) profiles.get(profileName);
-                if (minecartProfile == null) {
-                    // Scan for alternative names
-                    Set keySet = profiles.keySet();
-                    for (Object key : keySet) {
-                        if (key instanceof String && ((String) key).equalsIgnoreCase(profileName)) {
-                            profileName = (String) key;
-                            minecartProfile = (JSONObject) profiles.get(key);
-                            break;
+    private ProfilePathResult buildProfilePath() {
+        long phaseStartTime = System.nanoTime();
+        try {
+            String resultProfilePath = null;
+            if (profilePathAuto) {
+                String resultGamePath = buildGamePath();
+                log(Level.INFO, updaterBundle.getString("pathToConfiguration") + resultGamePath);
+                File profilesFile = new File(resultGamePath + File.separator + LauncherProfiles.PROFILES_FILE_NAME);
+                if (!profilesFile.exists()) {
+                    return new ProfilePathResult(null, updaterBundle.getString("profilesFileNotFound"));
+                }
+
+                try {
+                    // Profiles file is parsed again only if it was modified
+                    LauncherProfiles.Profile minecartProfile = launcherProfile;
+                    if (minecartProfile == null || !minecartProfile.isCurrent(profilesFile, profileName)) {
+                        minecartProfile = LauncherProfiles.findProfile(profilesFile, profileName);
+                        if (minecartProfile == null) {
+                            return new ProfilePathResult(null, updaterBundle.getString("profileNotFound") + profileName);
                         }
+                        launcherProfile = minecartProfile;
                     }
+                    profileName = minecartProfile.name;
+                    log(Level.INFO, updaterBundle.getString("profileName") + profileName);
+                    String minecartProfileDir = minecartProfile.gameDir;
+                    if (minecartProfileDir == null || minecartProfileDir.isEmpty()) {
+                        resultProfilePath = resultGamePath;
+                    } else {
+                        resultProfilePath = minecartProfileDir;
+                    }
+                    log(Level.INFO, updaterBundle.getString("pathToProfile") + resultProfilePath);
+                } catch (ParseException | FileNotFoundException ex) {
+                    Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
+                } catch (IOException ex) {
+                    Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
                 }
-                if (minecartProfile == null) {
-                    return new ProfilePathResult(null, updaterBundle.getString("profileNotFound") + profileName);
-                }
-                log(Level.INFO, updaterBundle.getString("profileName") + profileName);
-                String minecartProfileDir = (String) minecartProfile.get("gameDir");
-                if (minecartProfileDir == null || minecartProfileDir.isEmpty()) {
-                    resultProfilePath = resultGamePath;
-                } else {
-                    resultProfilePath = minecartProfileDir;
-                }
-                log(Level.INFO, updaterBundle.getString("pathToProfile") + resultProfilePath);
-            } catch (ParseException | FileNotFoundException ex) {
-                Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
-            } catch (IOException ex) {
-                Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
+            } else {
+                resultProfilePath = profilePath;
             }
-        } else {
-            resultProfilePath = profilePath;
-        }
 
-        return new ProfilePathResult(resultProfilePath, null);
+            return new ProfilePathResult(resultProfilePath, null);
+        } finally {
+            metrics.addPhaseTime(UpdaterMetrics.Phase.PROFILE, phaseStartTime);
+        }
     }
 
     private String buildGamePath() {
@@ -311,69 +927,754 @@ public class Updater {
         return null;
     }
 
-    public ModsUpdateResult performModsUpdate(UpdatePlan updatePlan, UpdatePlanObserver statusObserver) {
+    public ModsUpdateResult performModsUpdate(final UpdatePlan updatePlan, UpdatePlanObserver statusObserver) {
+        // Changes made by update are not reported, watching is started again for replaced directory
+        File profileModsDir = new File(updatePlan.profilePath + File.separator + "mods");
+        boolean watched = stopWatchingModsDirectory(profileModsDir);
+        try {
+            ModsUpdateResult modsUpdateResult = performModsUpdate(updatePlan, modsTransaction, downloadThreads, statusObserver);
+            metrics.setLastResult(modsUpdateResult.name());
+            return modsUpdateResult;
+        } finally {
+            if (watched) {
+                watchModsDirectory(profileModsDir);
+            }
+        }
+    }
+
+    private ModsUpdateResult performModsUpdate(final UpdatePlan updatePlan, final ModsTransaction transaction, int threadsCount, UpdatePlanObserver statusObserver) {
         String resultProfilePath = updatePlan.profilePath;
-        String profileModsDir = resultProfilePath + File.separator + "mods";
+        File profileModsDir = new File(resultProfilePath + File.separator + "mods");
         int downloadModsSize = updatePlan.downloadMods.size();
         if (downloadModsSize > 0 && statusObserver != null) {
             statusObserver.reportProgress(false, 0);
         }
 
-        // Add new files not present in previous set
-        int index = 0;
-        for (String mod : updatePlan.downloadMods) {
-            String modsUrlPath;
+        // Prepare new content of mods directory in staging directory
+        long phaseStartTime = System.nanoTime();
+        final File stagingDirectory;
+        try {
+            stagingDirectory = transaction.begin(profileModsDir);
+            Set<String> replacedMods = new HashSet<>(updatePlan.downloadMods);
+            replacedMods.addAll(updatePlan.deleteMods);
+            transaction.stageUnchangedFiles(replacedMods);
+        } catch (IOException ex) {
+            Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
+            return ModsUpdateResult.INSTALL_ERROR;
+        }
+
+        // Local files which can serve as base of binary delta
+        final Map<String, File> localModsByHash = findDeltaBaseFiles(updatePlan, profileModsDir);
+        metrics.addPhaseTime(UpdaterMetrics.Phase.STAGE, phaseStartTime);
+
+        final TransferProgress transferProgress = new TransferProgress(statusObserver instanceof TransferProgressObserver ? (TransferProgressObserver) statusObserver : null);
+        if (updatePlan.modsManifest != null) {
+            for (String mod : updatePlan.downloadMods) {
+                ModsManifest.Entry entry = updatePlan.modsManifest.getEntry(mod);
+                if (entry != null && entry.getSize() > 0) {
+                    transferProgress.addExpectedBytes(entry.getSize());
+                }
+            }
+        }
+
+        // Download new files not present in previous set
+        phaseStartTime = System.nanoTime();
+        ModsDownloader modsDownloader = new ModsDownloader(threadsCount);
+        ModsDownloader.Result downloadResult = modsDownloader.download(orderDownloads(updatePlan), new ModsDownloader.FileDownloader() {
+            @Override
+            public void download(String mod) throws IOException {
+                transferProgress.setFileState(mod, TransferProgress.FileState.DOWNLOADING);
+                boolean installed = false;
+                try {
+                    installMod(mod, updatePlan, transaction, stagingDirectory, localModsByHash, transferProgress);
+                    installed = true;
+                } finally {
+                    transferProgress.setFileState(mod, installed ? TransferProgress.FileState.COMPLETED : TransferProgress.FileState.FAILED);
+                }
+            }
+        }, statusObserver);
+        metrics.addPhaseTime(UpdaterMetrics.Phase.DOWNLOAD, phaseStartTime);
+        metrics.addDownloadedBytes(transferProgress.getTransferredBytes());
+        log(Level.INFO, updaterBundle.getString("downloadedBytesCount") + transferProgress.getTransferredBytes());
+        if (!downloadResult.isSuccessful()) {
+            // Mods directory is left untouched, staged files are reused by next update
+            updatePlan.failedMods = downloadResult.getFailedFiles();
+            metrics.addFailedFiles(updatePlan.failedMods.size());
+            log(Level.SEVERE, updaterBundle.getString("modsDownloadFailed") + updatePlan.failedMods);
+            return ModsUpdateResult.DOWNLOAD_ERROR;
+        }
+
+        // Replace mods directory, files not present in new mods list are left out
+        if (statusObserver != null) {
+            statusObserver.reportProgress(true, 0);
+        }
+        phaseStartTime = System.nanoTime();
+        try {
+            transaction.commit();
+        } catch (IOException ex) {
+            Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
+            return ModsUpdateResult.INSTALL_ERROR;
+        } finally {
+            metrics.addPhaseTime(UpdaterMetrics.Phase.COMMIT, phaseStartTime);
+        }
+        metrics.addDeletedFiles(updatePlan.deleteMods.size());
+        updateInstalledFilesIndex(updatePlan, profileModsDir);
+
+        log(Level.INFO, updaterBundle.getString("updatePerformed"));
+        return ModsUpdateResult.UPDATE_OK;
+    }
+
+    /**
+     * Updates mods in multiple profile directories.
+     *
+     * List of mods is downloaded once and update plan is computed for each
+     * target. Each distinct file fitting into local cache is then downloaded
+     * once to the cache and mods directories of targets are updated in
+     * parallel, getting copies of files from the cache. Download threads are divided among targets
+     * updated in parallel. Each target has its own index of installed files.
+     *
+     * @param profilePaths profile directories
+     * @param statusObserver observer of download of files or null
+     * @return results for targets in order of given directories
+     */
+    public List<ProfileTargetResult> performProfileTargetsUpdate(List<String> profilePaths, UpdatePlanObserver statusObserver) {
+        ModsManifestResult manifestResult = fetchModsManifest();
+        final List<ProfileTargetResult> results = new ArrayList<>();
+        Map<String, ModsManifest.Entry> prefetchEntries = new LinkedHashMap<>();
+        for (String profilePath : profilePaths) {
+            UpdatePlan updatePlan = computeModsUpdatePlan(manifestResult, scanInstalledMods(profilePath));
+            results.add(new ProfileTargetResult(profilePath, updatePlan));
+            if (updatePlan.resultType == CheckModsUpdateResult.UPDATE_FOUND) {
+                for (String mod : updatePlan.downloadMods) {
+                    ModsManifest.Entry entry = updatePlan.modsManifest.getEntry(mod);
+                    if (entry != null && entry.hasHash() && !prefetchEntries.containsKey(entry.getHash())) {
+                        prefetchEntries.put(entry.getHash(), entry);
+                    }
+                }
+            }
+        }
+
+        // Prefetched files are kept in cache until all targets are updated
+        List<String> pinnedHashes = prefetchToBlobCache(prefetchEntries.values(), statusObserver);
+
+        // Download threads are divided among targets updated in parallel
+        int targetThreadsCount = Math.max(1, Math.min(downloadThreads, results.size()));
+        final int targetDownloadThreads = Math.max(1, downloadThreads / targetThreadsCount);
+        ExecutorService executor = Executors.newFixedThreadPool(targetThreadsCount);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (final ProfileTargetResult result : results) {
+                if (result.updatePlan.resultType != CheckModsUpdateResult.UPDATE_FOUND) {
+                    continue;
+                }
+
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        File profileModsDir = new File(result.profilePath + File.separator + "mods");
+                        result.modsUpdateResult = performModsUpdate(result.updatePlan, getTargetTransaction(profileModsDir), targetDownloadThreads, null);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            executor.shutdownNow();
+            for (String hash : pinnedHashes) {
+                blobCache.unpin(hash);
+            }
+        }
+
+        // Result of the first failed target is reported in metrics
+        ModsUpdateResult targetsResult = null;
+        for (ProfileTargetResult result : results) {
+            log(Level.INFO, updaterBundle.getString("profileTargetUpdated") + result.profilePath + " " + (result.modsUpdateResult == null ? result.updatePlan.resultType : result.modsUpdateResult));
+            if (result.modsUpdateResult != null && (targetsResult == null || targetsResult == ModsUpdateResult.UPDATE_OK)) {
+                targetsResult = result.modsUpdateResult;
+            }
+        }
+        if (targetsResult != null) {
+            metrics.setLastResult(targetsResult.name());
+        }
+
+        return results;
+    }
+
+    /**
+     * Downloads files to local cache unless they are already present.
+     *
+     * Files are pinned in cache so that they are not evicted before they are
+     * installed. Only files fitting into size limit of cache are prefetched,
+     * remaining files are downloaded by targets on their own.
+     *
+     * @param entries manifest entries of files
+     * @param statusObserver observer of download or null
+     * @return hashes of pinned files which has to be unpinned by caller
+     */
+    private List<String> prefetchToBlobCache(Collection<ModsManifest.Entry> entries, UpdatePlanObserver statusObserver) {
+        final File prefetchDirectory = new File(configFile.getAbsoluteFile().getParentFile(), PREFETCH_DIRECTORY_NAME);
+        final Map<String, ModsManifest.Entry> entriesByName = new LinkedHashMap<>();
+        final TransferProgress transferProgress = new TransferProgress(statusObserver instanceof TransferProgressObserver ? (TransferProgressObserver) statusObserver : null);
+        List<String> pinnedHashes = new ArrayList<>();
+        long pinnedSize = 0;
+        for (ModsManifest.Entry entry : entries) {
+            if (entry.getSize() < 0 || pinnedSize + entry.getSize() > blobCache.getSizeLimit()) {
+                continue;
+            }
+
+            blobCache.pin(entry.getHash());
+            pinnedHashes.add(entry.getHash());
+            pinnedSize += entry.getSize();
+            if (blobCache.get(entry.getHash(), entry.getSize()) == null) {
+                entriesByName.put(entry.getName(), entry);
+                transferProgress.addExpectedBytes(entry.getSize());
+            }
+        }
+        if (entriesByName.isEmpty()) {
+            return pinnedHashes;
+        }
+
+        long phaseStartTime = System.nanoTime();
+        ModsDownloader modsDownloader = new ModsDownloader(downloadThreads);
+        ModsDownloader.Result downloadResult = modsDownloader.download(entriesByName.keySet(), new ModsDownloader.FileDownloader() {
+            @Override
+            public void download(String mod) throws IOException {
+                ModsManifest.Entry entry = entriesByName.get(mod);
+                Files.createDirectories(prefetchDirectory.toPath());
+                File targetFile = new File(prefetchDirectory, entry.getHash());
+                transferProgress.setFileState(mod, TransferProgress.FileState.DOWNLOADING);
+                boolean downloaded = false;
+                try {
+                    downloadModFile(encodeFileName(mod), targetFile, transferProgress, entry.getSize(), entry.getHash());
+                    metrics.addPrefetchedFile();
+                    storeToBlobCache(entry.getHash(), targetFile);
+                    downloaded = true;
+                } finally {
+                    targetFile.delete();
+                    transferProgress.setFileState(mod, downloaded ? TransferProgress.FileState.COMPLETED : TransferProgress.FileState.FAILED);
+                }
+            }
+        }, statusObserver);
+        metrics.addPhaseTime(UpdaterMetrics.Phase.DOWNLOAD, phaseStartTime);
+        metrics.addDownloadedBytes(transferProgress.getTransferredBytes());
+        log(Level.INFO, updaterBundle.getString("downloadedBytesCount") + transferProgress.getTransferredBytes());
+        if (!downloadResult.isSuccessful()) {
+            // Targets try to download missing files on their own
+            log(Level.SEVERE, updaterBundle.getString("modsDownloadFailed") + downloadResult.getFailedFiles());
+        }
+
+        return pinnedHashes;
+    }
+
+    /**
+     * Ranks download servers by their latency and throughput.
+     *
+     * Ranking stored by previous run is used if it is recent enough,
+     * otherwise all servers are probed concurrently.
+     */
+    public void rankDownloadMirrors() {
+        synchronized (downloadMirrorsLock) {
+            List<URL> baseUrls = new ArrayList<>(updateDownloadUrls);
+            if (downloadMirrorRanking != null || baseUrls.size() < 2) {
+                return;
+            }
+
+            long phaseStartTime = System.nanoTime();
+            File rankingFile = new File(configFile.getAbsoluteFile().getParentFile(), MIRRORS_FILE_NAME);
+            MirrorRanking ranking = MirrorRanking.load(rankingFile, baseUrls);
+            if (ranking == null) {
+                ranking = MirrorRanking.probe(httpClient, baseUrls, downloadProbePath);
+                for (MirrorRanking.Measurement measurement : ranking.getMeasurements()) {
+                    log(Level.INFO, updaterBundle.getString("downloadMirrorProbed") + measurement);
+                }
+                try {
+                    ranking.save(rankingFile);
+                } catch (IOException ex) {
+                    Logger.getLogger(Updater.class.getName()).log(Level.WARNING, null, ex);
+                }
+            }
+
+            downloadMirrorRanking = ranking;
+            metrics.addPhaseTime(UpdaterMetrics.Phase.MIRRORS, phaseStartTime);
+            log(Level.INFO, updaterBundle.getString("downloadMirrorSelected") + ranking.getUrls().get(0));
+        }
+    }
+
+    /**
+     * Returns download URLs in order in which they should be tried for
+     * given file.
+     *
+     * Files are split among configured count of best servers, each file
+     * always to the same server, so that its download can be resumed.
+     *
+     * @param filePath path of file relative to mods directory
+     * @return list of download URLs
+     */
+    private List<URL> getDownloadUrls(String filePath) {
+        List<URL> urls;
+        synchronized (downloadMirrorsLock) {
+            rankDownloadMirrors();
+            if (downloadMirrorRanking == null) {
+                urls = new ArrayList<>(updateDownloadUrls);
+            } else {
+                urls = downloadMirrorRanking.getUrls();
+                int splitCount = Math.min(downloadMirrorsCount, downloadMirrorRanking.getAvailableCount());
+                if (splitCount > 1) {
+                    urls.add(0, urls.remove((filePath.hashCode() & Integer.MAX_VALUE) % splitCount));
+                }
+            }
+        }
+
+        return urls;
+    }
+
+    /**
+     * Downloads file from mods directory on server.
+     *
+     * Failed download is repeated according to retry policy and then
+     * attempted from other servers in order of their ranking. Files with
+     * known hash are attempted once from local network cache first. Cache
+     * is given the hash from the list of mods of the server and the file is
+     * verified against it, so that the cache cannot provide other content.
+     *
+     * @param filePath encoded path of file relative to mods directory
+     * @param targetFile target file
+     * @param transferProgress progress of transfer
+     * @param expectedSize expected size of file already counted in expected
+     * bytes of progress or -1 if not known
+     * @param expectedHash expected SHA-256 hash of file or null if not known
+     * @throws IOException if download fails from all servers
+     */
+    private void downloadModFile(String filePath, final File targetFile, final TransferProgress transferProgress, final long expectedSize, final String expectedHash) throws IOException {
+        final File partFile = new File(targetFile.getPath() + PART_FILE_SUFFIX);
+        final AtomicBoolean attempted = new AtomicBoolean(false);
+        IOException failure = new IOException("No download URL available");
+        URL cacheUrl = expectedHash != null ? getLanCacheUrl() : null;
+        List<URL> downloadUrls = getDownloadUrls(filePath);
+        if (cacheUrl != null) {
+            downloadUrls.add(0, cacheUrl);
+        }
+        for (URL updateDownloadUrl : downloadUrls) {
+            boolean lanCache = updateDownloadUrl == cacheUrl;
+            final URL fileUrl;
             try {
-                modsUrlPath = updateDownloadUrl.toURI().toString() + "/mods";
+                String baseUrl = updateDownloadUrl.toURI().toString();
+                String query = lanCache ? "?" + LanCacheServer.HASH_PARAMETER + "=" + expectedHash : "";
+                fileUrl = new URI(baseUrl + (baseUrl.endsWith("/") ? "" : "/") + "mods/" + filePath + query).toURL();
             } catch (URISyntaxException ex) {
-                Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
-                return ModsUpdateResult.DOWNLOAD_ERROR;
+                throw new IOException(ex);
+            }
+            if (attempted.get()) {
+                log(Level.WARNING, updaterBundle.getString("downloadMirrorUsed") + fileUrl);
+            }
+
+            RetryPolicy.Operation<Void> operation = new RetryPolicy.Operation<Void>() {
+                @Override
+                public Void perform() throws IOException {
+                    // Data kept in part file are subtracted from expected bytes when resumed
+                    if (attempted.getAndSet(true) && partFile.isFile()) {
+                        transferProgress.addExpectedBytes(partFile.length());
+                    }
+                    downloadVerifiedFile(fileUrl, targetFile, transferProgress, expectedSize, expectedHash);
+                    return null;
+                }
+            };
+            try {
+                if (lanCache) {
+                    operation.perform();
+                } else {
+                    performWithRetry(operation);
+                }
+                return;
+            } catch (IOException ex) {
+                if (ex instanceof InterruptedIOException && !(ex instanceof SocketTimeoutException)) {
+                    throw ex;
+                }
+                // Other servers would fail to store the file the same way
+                if (RetryPolicy.isLocalFailure(ex)) {
+                    throw ex;
+                }
+                // Cache doesn't serve files not listed with requested hash
+                if (lanCache && !(ex instanceof FileNotFoundException)) {
+                    disableLanCache(cacheUrl, ex);
+                }
+                failure = ex;
             }
+        }
+
+        throw failure;
+    }
 
-            File targetFile = new File(profileModsDir + File.separator + mod);
+    /**
+     * Records files installed by update to index of installed files.
+     *
+     * @param updatePlan performed update plan
+     * @param profileModsDir mods directory
+     */
+    private void updateInstalledFilesIndex(UpdatePlan updatePlan, File profileModsDir) {
+        InstalledFilesIndex installedFilesIndex = updatePlan.installedFilesIndex;
+        if (installedFilesIndex == null) {
+            return;
+        }
 
+        for (String mod : updatePlan.deleteMods) {
+            installedFilesIndex.remove(mod);
+        }
+        for (String mod : updatePlan.downloadMods) {
+            ModsManifest.Entry entry = updatePlan.modsManifest == null ? null : updatePlan.modsManifest.getEntry(mod);
+            File modFile = new File(profileModsDir, mod);
             try {
-                URL modFileUrl = new URI(modsUrlPath + "/" + URLEncoder.encode(mod, "UTF-8").replaceAll("\\+", "%20")).toURL();
-                try (InputStream modFileStream = modFileUrl.openStream()) {
-                    targetFile.createNewFile();
-                    try (OutputStream targetFileStream = new FileOutputStream(targetFile)) {
-                        byte[] buffer = new byte[1024];
-                        int length;
-                        do {
-                            length = modFileStream.read(buffer);
-
-                            if (length >= 0) {
-                                targetFileStream.write(buffer, 0, length);
-                            }
-                        } while (length >= 0);
+                // Same attributes as when index is checked, File.lastModified() may drop fractions of second
+                BasicFileAttributes attributes = Files.readAttributes(modFile.toPath(), BasicFileAttributes.class);
+                installedFilesIndex.put(mod, attributes.size(), attributes.lastModifiedTime().toMillis(), entry == null ? null : entry.getHash());
+            } catch (IOException ex) {
+                installedFilesIndex.remove(mod);
+                Logger.getLogger(Updater.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+        saveInstalledFilesIndex(installedFilesIndex);
+    }
+
+    /**
+     * Installs single mod file to staging directory.
+     *
+     * File is taken from previous interrupted update, from local cache,
+     * created from binary delta or downloaded, whichever is available first.
+     *
+     * @param mod mod file name
+     * @param updatePlan update plan
+     * @param transaction transaction of mods directory update
+     * @param stagingDirectory staging directory
+     * @param localModsByHash local files by hash
+     * @param transferProgress progress of transfer
+     * @throws IOException if download fails
+     */
+    private void installMod(String mod, UpdatePlan updatePlan, ModsTransaction transaction, File stagingDirectory, Map<String, File> localModsByHash, TransferProgress transferProgress) throws IOException {
+        ModsManifest.Entry entry = updatePlan.modsManifest == null ? null : updatePlan.modsManifest.getEntry(mod);
+        String hash = entry == null ? null : entry.getHash();
+        long expectedSize = entry == null ? -1 : entry.getSize();
+        if (transaction.reuseDownloaded(mod, hash)) {
+            transferProgress.addExpectedBytes(-Math.max(expectedSize, 0));
+            return;
+        }
+
+        File targetFile = new File(stagingDirectory, mod);
+        if (hash != null && blobCache.install(hash, entry.getSize(), targetFile)) {
+            metrics.addCacheHit();
+            log(Level.INFO, updaterBundle.getString("modInstalledFromCache") + mod);
+            transferProgress.addExpectedBytes(-Math.max(expectedSize, 0));
+            transaction.recordDownloaded(mod, hash);
+            return;
+        }
+
+        if (hash != null && installFromDelta(updatePlan.modsManifest.getDeltas(mod), entry, targetFile, localModsByHash, transferProgress)) {
+            metrics.addDeltaPatch();
+            transferProgress.addExpectedBytes(-Math.max(expectedSize, 0));
+            storeToBlobCache(hash, targetFile);
+            transaction.recordDownloaded(mod, hash);
+            return;
+        }
+
+        downloadModFile(encodeFileName(mod), targetFile, transferProgress, expectedSize, hash);
+        metrics.addDownloadedFile();
+        if (hash != null) {
+            storeToBlobCache(hash, targetFile);
+        }
+        transaction.recordDownloaded(mod, hash);
+    }
+
+    /**
+     * Orders files to download according to configured download order.
+     *
+     * @param updatePlan update plan
+     * @return ordered list of files
+     */
+    private List<String> orderDownloads(UpdatePlan updatePlan) {
+        final List<String> orderedMods = new ArrayList<>();
+        final ModsManifest modsManifest = updatePlan.modsManifest;
+        if (modsManifest == null) {
+            orderedMods.addAll(updatePlan.downloadMods);
+            return orderedMods;
+        }
+
+        // Manifest order is used as base order and for files of equal size
+        final Map<String, Integer> manifestIndices = new HashMap<>();
+        for (ModsManifest.Entry entry : modsManifest.getEntries()) {
+            manifestIndices.put(entry.getName().toLowerCase(), manifestIndices.size());
+            if (updatePlan.downloadMods.contains(entry.getName())) {
+                orderedMods.add(entry.getName());
+            }
+        }
+
+        if (downloadOrder != DownloadOrder.MANIFEST) {
+            final int sign = downloadOrder == DownloadOrder.SMALLEST_FIRST ? 1 : -1;
+            Collections.sort(orderedMods, new Comparator<String>() {
+                @Override
+                public int compare(String mod1, String mod2) {
+                    int result = Long.compare(modsManifest.getEntry(mod1).getSize(), modsManifest.getEntry(mod2).getSize()) * sign;
+                    return result != 0 ? result : manifestIndices.get(mod1.toLowerCase()) - manifestIndices.get(mod2.toLowerCase());
+                }
+            });
+        }
+
+        return orderedMods;
+    }
+
+    private Map<String, File> findDeltaBaseFiles(UpdatePlan updatePlan, File profileModsDir) {
+        Map<String, File> localModsByHash = new HashMap<>();
+        if (updatePlan.modsManifest == null) {
+            return localModsByHash;
+        }
+
+        boolean deltaAvailable = false;
+        for (String mod : updatePlan.downloadMods) {
+            if (!updatePlan.modsManifest.getDeltas(mod).isEmpty()) {
+                deltaAvailable = true;
+                break;
+            }
+        }
+
+        if (deltaAvailable) {
+            // Replaced and deleted files are candidates for base of delta
+            Set<String> replacedMods = new HashSet<>(updatePlan.downloadMods);
+            replacedMods.addAll(updatePlan.deleteMods);
+            for (String mod : replacedMods) {
+                File modFile = new File(profileModsDir, mod);
+                if (modFile.isFile()) {
+                    try {
+                        localModsByHash.put(Checksums.sha256(modFile), modFile);
+                    } catch (IOException ex) {
+                        Logger.getLogger(Updater.class.getName()).log(Level.WARNING, null, ex);
                     }
                 }
-            } catch (URISyntaxException | IOException ex) {
-                Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
-                return ModsUpdateResult.DOWNLOAD_ERROR;
             }
-            index++;
-            if (statusObserver != null) {
-                statusObserver.reportProgress(false, (index * 100) / downloadModsSize);
+        }
+
+        return localModsByHash;
+    }
+
+    /**
+     * Creates file by applying binary delta to local file.
+     *
+     * @param deltas available deltas for the file
+     * @param entry manifest entry of the file
+     * @param targetFile target file
+     * @param localModsByHash local files by hash
+     * @param transferProgress progress of transfer
+     * @return true if file was created
+     */
+    private boolean installFromDelta(List<ModsManifest.Delta> deltas, ModsManifest.Entry entry, File targetFile, Map<String, File> localModsByHash, TransferProgress transferProgress) {
+        for (ModsManifest.Delta delta : deltas) {
+            // Cached base file is kept while delta is applied
+            blobCache.pin(delta.getBaseHash());
+            File baseFile = blobCache.get(delta.getBaseHash(), -1);
+            if (baseFile == null) {
+                baseFile = localModsByHash.get(delta.getBaseHash());
+            }
+            if (baseFile == null) {
+                blobCache.unpin(delta.getBaseHash());
+                continue;
+            }
+
+            File deltaFile = new File(targetFile.getPath() + DELTA_FILE_SUFFIX);
+            File patchedFile = new File(targetFile.getPath() + PATCHED_FILE_SUFFIX);
+            boolean patched = false;
+            transferProgress.addExpectedBytes(delta.getSize());
+            try {
+                downloadModFile(DELTAS_DIRECTORY + "/" + encodeFileName(delta.getFileName()), deltaFile, transferProgress, delta.getSize(), null);
+                String patchedHash = DeltaPatcher.apply(baseFile, deltaFile, patchedFile);
+                if (!entry.getHash().equals(patchedHash)) {
+                    log(Level.WARNING, updaterBundle.getString("modHashMismatch") + delta.getFileName());
+                    continue;
+                }
+
+                Files.move(patchedFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                log(Level.INFO, updaterBundle.getString("modInstalledFromDelta") + entry.getName());
+                patched = true;
+                return true;
+            } catch (IOException ex) {
+                Logger.getLogger(Updater.class.getName()).log(Level.WARNING, null, ex);
+            } finally {
+                if (!patched) {
+                    // Whole file or another delta is downloaded instead
+                    transferProgress.addExpectedBytes(-delta.getSize());
+                }
+                deltaFile.delete();
+                patchedFile.delete();
+                blobCache.unpin(delta.getBaseHash());
             }
-            currentFiles.add(mod);
         }
 
-        // Delete all files not present in new mods list
-        if (statusObserver != null) {
-            statusObserver.reportProgress(true, 0);
+        return false;
+    }
+
+    private static String encodeFileName(String fileName) throws UnsupportedEncodingException {
+        return URLEncoder.encode(fileName, "UTF-8").replaceAll("\\+", "%20");
+    }
+
+    /**
+     * Stores verified file to local cache.
+     *
+     * @param hash hash of the file
+     * @param file file
+     */
+    private void storeToBlobCache(String hash, File file) {
+        try {
+            blobCache.put(hash, file);
+        } catch (IOException ex) {
+            Logger.getLogger(Updater.class.getName()).log(Level.WARNING, null, ex);
         }
-        for (String mod : updatePlan.deleteMods) {
-            File targetFile = new File(profileModsDir + File.separator + mod);
-            if (targetFile.exists()) {
-                if (targetFile.delete()) {
-                    currentFiles.remove(mod);
+    }
+
+    /**
+     * Downloads file to target location, download of file not matching
+     * expected size or hash is repeated.
+     *
+     * @param fileUrl source URL
+     * @param targetFile target file
+     * @param transferProgress progress of transfer
+     * @param expectedSize expected size of file already counted in expected
+     * bytes of progress or -1 if not known
+     * @param expectedHash expected SHA-256 hash of file or null if not known
+     * @throws IOException if download fails or file doesn't match
+     */
+    private void downloadVerifiedFile(URL fileUrl, File targetFile, TransferProgress transferProgress, long expectedSize, String expectedHash) throws IOException {
+        int attempt = 1;
+        while (true) {
+            try {
+                downloadFile(fileUrl, targetFile, transferProgress, expectedSize, expectedHash);
+                return;
+            } catch (FileVerificationException ex) {
+                log(Level.WARNING, updaterBundle.getString("modHashMismatch") + targetFile.getName());
+                if (attempt >= DOWNLOAD_VERIFY_ATTEMPTS) {
+                    throw ex;
                 }
             }
+
+            attempt++;
+            transferProgress.addExpectedBytes(Math.max(expectedSize, 0));
         }
+    }
 
-        log(Level.INFO, updaterBundle.getString("updatePerformed"));
-        return ModsUpdateResult.UPDATE_OK;
+    /**
+     * Downloads file to target location.
+     *
+     * Data are written to sidecar part file first and moved to target
+     * location when complete and verified. Existing part file is resumed
+     * using HTTP range request if server supports it, whole file sent by
+     * server instead replaces content of part file. Compressed transport is
+     * requested for downloads which are not resumed. Hash of the file is
+     * computed while data are transferred.
+     *
+     * @param fileUrl source URL
+     * @param targetFile target file
+     * @param transferProgress progress of transfer
+     * @param expectedSize expected size of file already counted in expected
+     * bytes of progress or -1 if not known
+     * @param expectedHash expected SHA-256 hash of file or null if not known
+     * @throws FileVerificationException if downloaded file doesn't match
+     * @throws IOException if download fails
+     */
+    private void downloadFile(URL fileUrl, File targetFile, TransferProgress transferProgress, long expectedSize, String expectedHash) throws IOException {
+        File partFile = new File(targetFile.getPath() + PART_FILE_SUFFIX);
+        long resumeOffset = partFile.isFile() ? partFile.length() : 0;
+
+        Map<String, String> requestHeaders = new HashMap<>();
+        if (resumeOffset > 0) {
+            requestHeaders.put("Range", "bytes=" + resumeOffset + "-");
+            // Part file modification time is set to server's last modification time
+            requestHeaders.put("If-Range", formatHttpDate(partFile.lastModified()));
+            requestHeaders.put("Accept-Encoding", HttpCompression.IDENTITY_ENCODING);
+        }
+
+        boolean restart = false;
+        try (HttpClient.Response response = httpClient.get(fileUrl, requestHeaders)) {
+            int responseCode = response.getResponseCode();
+            boolean append = false;
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                append = resumeOffset == parseContentRangeStart(response.getHeaderField("Content-Range"));
+            } else if (responseCode != HTTP_RANGE_NOT_SATISFIABLE || resumeOffset == 0) {
+                // Range not satisfiable means part file is of unexpected size
+                response.checkSuccessful();
+            }
+
+            if (resumeOffset > 0 && !append && responseCode != HttpURLConnection.HTTP_OK) {
+                // Unexpected range cannot be used, whole file is requested when response is closed
+                restart = true;
+            } else {
+                MessageDigest digest = Checksums.createSha256Digest();
+                if (append) {
+                    log(Level.INFO, updaterBundle.getString("downloadResumed") + targetFile.getName() + " (" + resumeOffset + ")");
+                    Checksums.update(digest, partFile);
+                }
+
+                // Expected size is corrected by actual length of the response
+                long contentLength = response.getContentLength();
+                if (contentLength >= 0) {
+                    transferProgress.addExpectedBytes(contentLength - Math.max(expectedSize, 0));
+                }
+
+                long lastModified = response.getLastModified();
+                ReadableByteChannel bodyChannel = Channels.newChannel(new DigestInputStream(response.getBody(), digest));
+                if (bandwidthLimiter != null) {
+                    bodyChannel = bandwidthLimiter.limit(bodyChannel);
+                }
+                // Failure of local file is reported as FileSystemException, not as missing resource
+                try (ReadableByteChannel fileChannel = bodyChannel; FileChannel partFileChannel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+                    DataTransfer.transfer(fileChannel, partFileChannel, transferProgress);
+                } finally {
+                    if (lastModified > 0) {
+                        partFile.setLastModified(lastModified);
+                    }
+                }
+
+                // Mismatched file is rejected, resuming it would give the same result
+                String hash = Checksums.toHex(digest.digest());
+                if ((expectedSize >= 0 && partFile.length() != expectedSize) || (expectedHash != null && !expectedHash.equals(hash))) {
+                    partFile.delete();
+                    throw new FileVerificationException(fileUrl, expectedHash, hash);
+                }
+            }
+        }
+
+        if (restart) {
+            partFile.delete();
+            downloadFile(fileUrl, targetFile, transferProgress, expectedSize, expectedHash);
+            return;
+        }
+
+        try {
+            Files.move(partFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(partFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static String formatHttpDate(long time) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return dateFormat.format(new Date(time));
+    }
+
+    private static long parseContentRangeStart(String contentRange) {
+        // Format: bytes start-end/total
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int separatorPos = contentRange.indexOf('-');
+        if (separatorPos < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(6, separatorPos).trim());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
     }
 
     public VersionNumbers getVersionNumbers() {
@@ -383,6 +1684,27 @@ public class Updater {
         return versionNumbers;
     }
 
+    /**
+     * Returns profile directories configured for update of multiple
+     * profiles.
+     *
+     * @return list of profile directories, empty if not configured
+     */
+    public List<String> getProfileTargets() {
+        List<String> targets = new ArrayList<>();
+        int index = 0;
+        String target;
+        do {
+            target = config.getProperty(PROFILE_TARGET_PREFIX + index, null);
+            if (target != null && !target.isEmpty()) {
+                targets.add(target);
+            }
+            index++;
+        } while (target != null);
+
+        return targets;
+    }
+
     public Set<String> getModRecords() {
         Set<String> files = new HashSet<>();
         int index = 0;
@@ -398,6 +1720,23 @@ public class Updater {
         return files;
     }
 
+    /**
+     * Writes summary of metrics of this run next to configuration file.
+     */
+    public void writeMetricsReport() {
+        File reportFile = new File(configFile.getAbsoluteFile().getParentFile(), METRICS_FILE_NAME);
+        try {
+            metrics.writeReport(reportFile, applicationVersion);
+            log(Level.INFO, updaterBundle.getString("metricsReportSaved") + reportFile.getName());
+        } catch (IOException ex) {
+            Logger.getLogger(Updater.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    public UpdaterMetrics getMetrics() {
+        return metrics;
+    }
+
     public URL getAppDownloadUrl() {
         return appDownloadUrl;
     }
@@ -422,6 +1761,16 @@ public class Updater {
         this.logListener = logListener;
     }
 
+    /**
+     * Enables watching of profile mods directory between checks.
+     *
+     * @param modsDirectoryListener listener notified about changes of mods
+     * directory not made by updater
+     */
+    public void setModsDirectoryListener(ModsDirectoryWatcher.ChangeListener modsDirectoryListener) {
+        this.modsDirectoryListener = modsDirectoryListener;
+    }
+
     public void loadConfiguration() {
         configFile = new File("./minecart-updater.cfg");
         if (configFile.exists()) {
@@ -443,6 +1792,56 @@ public class Updater {
         profilePathAuto = Boolean.valueOf(config.getProperty(PROFILE_PATH_AUTO_PROPERTY, Boolean.TRUE.toString()));
         runCommand = config.getProperty(RUN_COMMAND_PROPERTY, "");
         runCommandAuto = Boolean.valueOf(config.getProperty(RUN_COMMAND_AUTO_PROPERTY, Boolean.TRUE.toString()));
+        downloadThreads = getIntProperty(DOWNLOAD_THREADS_PROPERTY, ModsDownloader.DEFAULT_THREADS_COUNT);
+        connectTimeout = getIntProperty(CONNECT_TIMEOUT_PROPERTY, HttpClient.DEFAULT_CONNECT_TIMEOUT);
+        readTimeout = getIntProperty(READ_TIMEOUT_PROPERTY, HttpClient.DEFAULT_READ_TIMEOUT);
+        maxConnectionsPerHost = getIntProperty(MAX_CONNECTIONS_PER_HOST_PROPERTY, HttpClient.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+        blobCachePath = config.getProperty(BLOB_CACHE_PATH_PROPERTY, "");
+        try {
+            blobCacheSizeLimit = Long.parseLong(config.getProperty(BLOB_CACHE_SIZE_LIMIT_PROPERTY, String.valueOf(BlobCache.DEFAULT_SIZE_LIMIT / MEGABYTE))) * MEGABYTE;
+        } catch (NumberFormatException ex) {
+            blobCacheSizeLimit = BlobCache.DEFAULT_SIZE_LIMIT;
+        }
+        downloadRateLimit = getIntProperty(DOWNLOAD_RATE_LIMIT_PROPERTY, 0);
+        retryAttempts = getIntProperty(RETRY_ATTEMPTS_PROPERTY, RetryPolicy.DEFAULT_MAX_ATTEMPTS);
+        downloadMirrorsCount = getIntProperty(DOWNLOAD_MIRRORS_COUNT_PROPERTY, 1);
+        lanCacheAddress = config.getProperty(LAN_CACHE_URL_PROPERTY, "");
+        lanCacheDiscovery = Boolean.valueOf(config.getProperty(LAN_CACHE_DISCOVERY_PROPERTY, Boolean.FALSE.toString()));
+        lanCachePort = getIntProperty(LAN_CACHE_PORT_PROPERTY, LanCacheServer.DEFAULT_PORT);
+        try {
+            downloadOrder = DownloadOrder.valueOf(config.getProperty(DOWNLOAD_ORDER_PROPERTY, DownloadOrder.MANIFEST.name()));
+        } catch (IllegalArgumentException ex) {
+            downloadOrder = DownloadOrder.MANIFEST;
+        }
+        loadLauncherProfile();
+    }
+
+    /**
+     * Loads profile found in launcher profiles file by previous run.
+     */
+    private void loadLauncherProfile() {
+        String profilesFilePath = config.getProperty(LAUNCHER_PROFILES_FILE_PROPERTY);
+        String name = config.getProperty(LAUNCHER_PROFILE_NAME_PROPERTY);
+        if (profilesFilePath == null || name == null) {
+            return;
+        }
+
+        try {
+            long lastModified = Long.parseLong(config.getProperty(LAUNCHER_PROFILES_MODIFIED_PROPERTY, "-1"));
+            long size = Long.parseLong(config.getProperty(LAUNCHER_PROFILES_SIZE_PROPERTY, "-1"));
+            String gameDir = config.getProperty(LAUNCHER_PROFILE_GAME_DIR_PROPERTY);
+            launcherProfile = new LauncherProfiles.Profile(new File(profilesFilePath), lastModified, size, name, gameDir);
+        } catch (NumberFormatException ex) {
+            launcherProfile = null;
+        }
+    }
+
+    private int getIntProperty(String propertyName, int defaultValue) {
+        try {
+            return Integer.parseInt(config.getProperty(propertyName, String.valueOf(defaultValue)));
+        } catch (NumberFormatException ex) {
+            return defaultValue;
+        }
     }
 
     public void saveConfiguration() {
@@ -455,16 +1854,40 @@ public class Updater {
         config.setProperty(RUN_COMMAND_PROPERTY, runCommand);
         config.setProperty(RUN_COMMAND_AUTO_PROPERTY, Boolean.toString(runCommandAuto));
 
-        /**
-         * Saves lists of currently installed mods
-         */
-        int index = 0;
-        if (currentFiles != null) { 
-            for (String mod : currentFiles) {
-                config.setProperty(MOD_RECORD_PREFIX + index, mod);
-                index++;
+        config.setProperty(DOWNLOAD_THREADS_PROPERTY, Integer.toString(downloadThreads));
+        config.setProperty(CONNECT_TIMEOUT_PROPERTY, Integer.toString(connectTimeout));
+        config.setProperty(READ_TIMEOUT_PROPERTY, Integer.toString(readTimeout));
+        config.setProperty(MAX_CONNECTIONS_PER_HOST_PROPERTY, Integer.toString(maxConnectionsPerHost));
+        config.setProperty(BLOB_CACHE_PATH_PROPERTY, blobCachePath);
+        config.setProperty(BLOB_CACHE_SIZE_LIMIT_PROPERTY, Long.toString(blobCacheSizeLimit / MEGABYTE));
+        config.setProperty(DOWNLOAD_RATE_LIMIT_PROPERTY, Integer.toString(downloadRateLimit));
+        config.setProperty(DOWNLOAD_ORDER_PROPERTY, downloadOrder.name());
+        config.setProperty(RETRY_ATTEMPTS_PROPERTY, Integer.toString(retryAttempts));
+        config.setProperty(DOWNLOAD_MIRRORS_COUNT_PROPERTY, Integer.toString(downloadMirrorsCount));
+        config.setProperty(LAN_CACHE_URL_PROPERTY, lanCacheAddress);
+        config.setProperty(LAN_CACHE_DISCOVERY_PROPERTY, Boolean.toString(lanCacheDiscovery));
+        config.setProperty(LAN_CACHE_PORT_PROPERTY, Integer.toString(lanCachePort));
+
+        LauncherProfiles.Profile profile = launcherProfile;
+        if (profile != null) {
+            config.setProperty(LAUNCHER_PROFILES_FILE_PROPERTY, profile.profilesFile.getPath());
+            config.setProperty(LAUNCHER_PROFILES_MODIFIED_PROPERTY, Long.toString(profile.lastModified));
+            config.setProperty(LAUNCHER_PROFILES_SIZE_PROPERTY, Long.toString(profile.size));
+            config.setProperty(LAUNCHER_PROFILE_NAME_PROPERTY, profile.name);
+            if (profile.gameDir == null) {
+                config.remove(LAUNCHER_PROFILE_GAME_DIR_PROPERTY);
+            } else {
+                config.setProperty(LAUNCHER_PROFILE_GAME_DIR_PROPERTY, profile.gameDir);
+            }
+        }
+
+        // Installed mods are recorded in index of installed files
+        if (modRecordsImported) {
+            for (String propertyName : config.stringPropertyNames()) {
+                if (propertyName.startsWith(MOD_RECORD_PREFIX)) {
+                    config.remove(propertyName);
+                }
             }
-            config.setProperty(MOD_RECORD_PREFIX + index, "");
         }
 
         FileOutputStream configOutput;
@@ -480,19 +1903,86 @@ public class Updater {
         }
     }
 
+    /**
+     * Loads server configuration.
+     *
+     * Values from override set by {@link #setServerConfigurationOverride} or
+     * from file given by system property {@link #SERVER_CONFIGURATION_PROPERTY}
+     * take precedence over bundled configuration.
+     */
     public void loadServerConfiguration() {
+        Properties override = serverConfigurationOverride;
+        if (override == null) {
+            override = loadServerConfigurationOverride();
+        }
+
         try {
-            newsUrl = new URI(serverConfiguration.getString("news_url")).toURL();
-            checkUpdateUrl = new URI(serverConfiguration.getString("update_url")).toURL();
-            filesUpdateUrl = new URI(serverConfiguration.getString("update_files_url")).toURL();
-            forgeUpdateUrl = new URI(serverConfiguration.getString("update_forge_url")).toURL();
-            appDownloadUrl = new URI(serverConfiguration.getString("download_laucher_url")).toURL();
-            websiteUrl = new URI(serverConfiguration.getString("website_url")).toURL();
+            newsUrl = new URI(getServerProperty(override, "news_url")).toURL();
+            checkUpdateUrl = new URI(getServerProperty(override, "update_url")).toURL();
+            filesUpdateUrl = new URI(getServerProperty(override, "update_files_url")).toURL();
+            String legacyFilesUrl = getServerProperty(override, "update_files_legacy_url");
+            legacyFilesUpdateUrl = legacyFilesUrl == null || legacyFilesUrl.isEmpty() ? null : new URI(legacyFilesUrl).toURL();
+            forgeUpdateUrl = new URI(getServerProperty(override, "update_forge_url")).toURL();
+            appDownloadUrl = new URI(getServerProperty(override, "download_laucher_url")).toURL();
+            websiteUrl = new URI(getServerProperty(override, "website_url")).toURL();
             log(Level.INFO, updaterBundle.getString("websiteInUse") + websiteUrl);
-            updateDownloadUrl = new URI(serverConfiguration.getString("update_download_url")).toURL();
+            updateDownloadUrls.clear();
+            updateDownloadUrls.add(new URI(getServerProperty(override, "update_download_url")).toURL());
         } catch (URISyntaxException | MalformedURLException ex) {
             Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
         }
+
+        // Mirrors are ordered by ranking, if there are more download URLs
+        synchronized (downloadMirrorsLock) {
+            downloadMirrorRanking = null;
+        }
+        downloadProbePath = getServerProperty(override, "update_download_probe_path");
+        String mirrors = getServerProperty(override, "update_download_mirrors");
+        if (mirrors != null) {
+            for (String mirror : mirrors.split("[,\\s]+")) {
+                if (!mirror.isEmpty()) {
+                    try {
+                        updateDownloadUrls.add(new URI(mirror).toURL());
+                    } catch (URISyntaxException | MalformedURLException | IllegalArgumentException ex) {
+                        Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces server configuration override.
+     *
+     * @param serverConfigurationOverride properties overriding server
+     * configuration or null to use system property
+     */
+    public void setServerConfigurationOverride(Properties serverConfigurationOverride) {
+        this.serverConfigurationOverride = serverConfigurationOverride;
+    }
+
+    private Properties loadServerConfigurationOverride() {
+        Properties override = new Properties();
+        String overrideFilePath = System.getProperty(SERVER_CONFIGURATION_PROPERTY);
+        if (overrideFilePath != null && !overrideFilePath.isEmpty()) {
+            try (InputStream overrideInput = new FileInputStream(overrideFilePath)) {
+                override.load(overrideInput);
+                log(Level.INFO, updaterBundle.getString("serverConfigurationOverridden") + overrideFilePath);
+            } catch (IOException ex) {
+                Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        return override;
+    }
+
+    private String getServerProperty(Properties override, String key) {
+        String value = override.getProperty(key);
+        if (value != null) {
+            return value;
+        }
+
+        return serverConfiguration.containsKey(key) ? serverConfiguration.getString(key) : null;
     }
 
     public String getGamePath() {
@@ -547,6 +2037,30 @@ public class Updater {
         this.runCommandAuto = runCommandAuto;
     }
 
+    public int getDownloadThreads() {
+        return downloadThreads;
+    }
+
+    public void setDownloadThreads(int downloadThreads) {
+        this.downloadThreads = downloadThreads;
+    }
+
+    public int getDownloadRateLimit() {
+        return downloadRateLimit;
+    }
+
+    public void setDownloadRateLimit(int downloadRateLimit) {
+        this.downloadRateLimit = downloadRateLimit;
+    }
+
+    public DownloadOrder getDownloadOrder() {
+        return downloadOrder;
+    }
+
+    public void setDownloadOrder(DownloadOrder downloadOrder) {
+        this.downloadOrder = downloadOrder;
+    }
+
     public String getApplicationVersion() {
         return applicationVersion;
     }
@@ -574,6 +2088,54 @@ public class Updater {
         String errorMessage;
     }
 
+    public static class ModsManifestResult {
+
+        public ModsManifestResult(ModsManifest modsManifest, UpdatePlan failedPlan) {
+            this.modsManifest = modsManifest;
+            this.failedPlan = failedPlan;
+        }
+
+        ModsManifest modsManifest;
+        UpdatePlan failedPlan;
+    }
+
+    public static class InstalledModsResult {
+
+        public InstalledModsResult(String profilePath, Map<String, File> installedMods, UpdatePlan failedPlan) {
+            this.profilePath = profilePath;
+            this.installedMods = installedMods;
+            this.failedPlan = failedPlan;
+        }
+
+        String profilePath;
+        Map<String, File> installedMods;
+        Map<String, BasicFileAttributes> installedModsAttributes;
+        InstalledFilesIndex installedFilesIndex;
+        UpdatePlan failedPlan;
+    }
+
+    /**
+     * Exception for downloaded file not matching expected size or hash.
+     */
+    private static class FileVerificationException extends IOException {
+
+        public FileVerificationException(URL url, String expectedHash, String hash) {
+            super("Downloaded file doesn't match expected size or hash " + expectedHash + " (" + hash + "): " + url);
+        }
+    }
+
+    public static class ProfileTargetResult {
+
+        public ProfileTargetResult(String profilePath, UpdatePlan updatePlan) {
+            this.profilePath = profilePath;
+            this.updatePlan = updatePlan;
+        }
+
+        String profilePath;
+        UpdatePlan updatePlan;
+        volatile ModsUpdateResult modsUpdateResult;
+    }
+
     public static class UpdatePlan {
 
         String profilePath;
@@ -581,6 +2143,9 @@ public class Updater {
         String errorMessage;
         Set<String> downloadMods;
         Set<String> deleteMods;
+        List<String> failedMods;
+        ModsManifest modsManifest;
+        InstalledFilesIndex installedFilesIndex;
 
         public UpdatePlan(CheckModsUpdateResult resultType, String errorMessage) {
             this.resultType = resultType;
@@ -606,6 +2171,46 @@ public class Updater {
         void reportProgress(boolean indeterminate, int progress);
     }
 
+    public static interface TransferProgressObserver extends UpdatePlanObserver {
+
+        /**
+         * Reports progress of data transfer.
+         *
+         * Invoked from download threads.
+         *
+         * @param progress transfer progress
+         */
+        void reportTransferProgress(TransferProgress progress);
+
+        /**
+         * Reports change of the state of single file.
+         *
+         * Invoked from download threads.
+         *
+         * @param file file name
+         * @param state new state
+         */
+        void reportFileState(String file, TransferProgress.FileState state);
+    }
+
+    /**
+     * Order in which mod files are downloaded.
+     */
+    public static enum DownloadOrder {
+        /**
+         * Order of files listed on server.
+         */
+        MANIFEST,
+        /**
+         * Smallest files first, for quickly visible progress.
+         */
+        SMALLEST_FIRST,
+        /**
+         * Largest files first, for shortest total time of parallel download.
+         */
+        LARGEST_FIRST
+    }
+
     public static enum LoadNewsResult {
         OK,
         FAILED
@@ -633,7 +2238,8 @@ public class Updater {
 
     public static enum ModsUpdateResult {
         UPDATE_OK,
-        DOWNLOAD_ERROR
+        DOWNLOAD_ERROR,
+        INSTALL_ERROR
     }
 
     public static enum OsType {
@@ -30,9 +30,24 @@ public class UpdaterApp {
     /**
      * Main application method.
      *
+     * Option --headless performs update without user interface.
+     *
+     * Size of the runtime pool of idle keep-alive connections per host is
+     * set before any connection is opened, unless it is given by
+     * -Dhttp.maxConnections on command line.
+     *
      * @param args the command line arguments
      */
     public static void main(String args[]) {
+        if (System.getProperty(HttpClient.KEEP_ALIVE_CONNECTIONS_PROPERTY) == null) {
+            System.setProperty(HttpClient.KEEP_ALIVE_CONNECTIONS_PROPERTY, String.valueOf(HttpClient.DEFAULT_MAX_CONNECTIONS_PER_HOST));
+        }
+
+        if (HeadlessUpdater.isHeadless(args)) {
+            System.setProperty("java.awt.headless", Boolean.TRUE.toString());
+            System.exit(new HeadlessUpdater(System.out).run(args));
+        }
+
         /* Set the Nimbus look and feel.
          *
          * If Nimbus (introduced in Java SE 6) is not available, stay with the default look and feel.
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.json.simple.JSONValue;
+
+/**
+ * Counters and timers of updater phases.
+ *
+ * Metrics are collected for the whole run of updater. Time of phases
+ * running concurrently or repeatedly, as for multiple profile targets, is
+ * summed up. Metrics are available as MXBean and written as JSON report
+ * which can be attached to bug reports.
+ *
+ * @author Minecart team
+ */
+public class UpdaterMetrics implements UpdaterMetricsMXBean {
+
+    public static final String OBJECT_NAME = "cz.minecart.updater:type=UpdaterMetrics";
+
+    private final long startTime = System.currentTimeMillis();
+    private final AtomicLongArray phaseTimes = new AtomicLongArray(Phase.values().length);
+    private final AtomicLong downloadedBytes = new AtomicLong();
+    private final AtomicLong downloadedFiles = new AtomicLong();
+    private final AtomicLong prefetchedFiles = new AtomicLong();
+    private final AtomicLong failedFiles = new AtomicLong();
+    private final AtomicLong deletedFiles = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong deltaPatches = new AtomicLong();
+    private volatile String lastResult = null;
+
+    /**
+     * Registers metrics to platform MBean server, replacing metrics of
+     * other updater instance.
+     *
+     * @throws JMException if registration fails
+     */
+    public void register() throws JMException {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(OBJECT_NAME);
+        try {
+            mBeanServer.unregisterMBean(objectName);
+        } catch (InstanceNotFoundException ex) {
+            // Not registered yet
+        }
+        mBeanServer.registerMBean(this, objectName);
+    }
+
+    /**
+     * Adds time of phase.
+     *
+     * @param phase phase
+     * @param phaseStartTime start of phase as given by System.nanoTime()
+     */
+    public void addPhaseTime(Phase phase, long phaseStartTime) {
+        phaseTimes.addAndGet(phase.ordinal(), System.nanoTime() - phaseStartTime);
+    }
+
+    public void addDownloadedBytes(long count) {
+        downloadedBytes.addAndGet(count);
+    }
+
+    public void addDownloadedFile() {
+        downloadedFiles.incrementAndGet();
+    }
+
+    public void addPrefetchedFile() {
+        prefetchedFiles.incrementAndGet();
+    }
+
+    public void addFailedFiles(int count) {
+        failedFiles.addAndGet(count);
+    }
+
+    public void addDeletedFiles(int count) {
+        deletedFiles.addAndGet(count);
+    }
+
+    public void addRetry() {
+        retries.incrementAndGet();
+    }
+
+    public void addCacheHit() {
+        cacheHits.incrementAndGet();
+    }
+
+    public void addDeltaPatch() {
+        deltaPatches.incrementAndGet();
+    }
+
+    public void setLastResult(String lastResult) {
+        this.lastResult = lastResult;
+    }
+
+    @Override
+    public long getStartTime() {
+        return startTime;
+    }
+
+    @Override
+    public Map<String, Long> getPhaseTimes() {
+        Map<String, Long> times = new LinkedHashMap<>();
+        for (Phase phase : Phase.values()) {
+            times.put(phase.getName(), TimeUnit.NANOSECONDS.toMillis(phaseTimes.get(phase.ordinal())));
+        }
+
+        return times;
+    }
+
+    @Override
+    public long getDownloadedBytes() {
+        return downloadedBytes.get();
+    }
+
+    @Override
+    public long getDownloadedFiles() {
+        return downloadedFiles.get();
+    }
+
+    @Override
+    public long getPrefetchedFiles() {
+        return prefetchedFiles.get();
+    }
+
+    @Override
+    public long getFailedFiles() {
+        return failedFiles.get();
+    }
+
+    @Override
+    public long getDeletedFiles() {
+        return deletedFiles.get();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    @Override
+    public long getDeltaPatches() {
+        return deltaPatches.get();
+    }
+
+    @Override
+    public String getLastResult() {
+        return lastResult;
+    }
+
+    /**
+     * Returns compact JSON summary of metrics.
+     *
+     * @param applicationVersion version of updater
+     * @return JSON text
+     */
+    public String toJSONString(String applicationVersion) {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("version", applicationVersion);
+        report.put("os", System.getProperty("os.name"));
+        report.put("java", System.getProperty("java.version"));
+        report.put("startTime", startTime);
+        report.put("totalTime", System.currentTimeMillis() - startTime);
+        report.put("result", lastResult);
+        report.put("phases", getPhaseTimes());
+        report.put("downloadedBytes", downloadedBytes.get());
+        report.put("downloadedFiles", downloadedFiles.get());
+        report.put("prefetchedFiles", prefetchedFiles.get());
+        report.put("failedFiles", failedFiles.get());
+        report.put("deletedFiles", deletedFiles.get());
+        report.put("retries", retries.get());
+        report.put("cacheHits", cacheHits.get());
+        report.put("deltaPatches", deltaPatches.get());
+        return JSONValue.toJSONString(report);
+    }
+
+    /**
+     * Writes JSON summary of metrics to file.
+     *
+     * @param reportFile report file
+     * @param applicationVersion version of updater
+     * @throws IOException if writing fails
+     */
+    public void writeReport(File reportFile, String applicationVersion) throws IOException {
+        File tempFile = new File(reportFile.getPath() + ".tmp");
+        try (OutputStream reportOutput = new FileOutputStream(tempFile)) {
+            reportOutput.write((toJSONString(applicationVersion) + "\n").getBytes("UTF-8"));
+        }
+
+        try {
+            Files.move(tempFile.toPath(), reportFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tempFile.toPath(), reportFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Measured phase of update.
+     */
+    public static enum Phase {
+        PROFILE("profile"),
+        NEWS("news"),
+        APP_UPDATE("appUpdate"),
+        MANIFEST("manifest"),
+        SCAN("scan"),
+        PLAN("plan"),
+        MIRRORS("mirrors"),
+        STAGE("stage"),
+        DOWNLOAD("download"),
+        COMMIT("commit");
+
+        private final String name;
+
+        private Phase(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+}
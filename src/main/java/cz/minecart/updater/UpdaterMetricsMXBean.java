@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import java.util.Map;
+
+/**
+ * Management interface of updater metrics.
+ *
+ * @author Minecart team
+ */
+public interface UpdaterMetricsMXBean {
+
+    /**
+     * Returns time when metrics started to be collected.
+     *
+     * @return time in milliseconds since epoch
+     */
+    long getStartTime();
+
+    /**
+     * Returns time spent in each phase.
+     *
+     * @return time in milliseconds by phase name
+     */
+    Map<String, Long> getPhaseTimes();
+
+    long getDownloadedBytes();
+
+    /**
+     * Returns count of mods installed by download of whole file.
+     *
+     * @return count of files
+     */
+    long getDownloadedFiles();
+
+    /**
+     * Returns count of files downloaded to local cache without installing,
+     * for profile targets or for local network cache.
+     *
+     * @return count of files
+     */
+    long getPrefetchedFiles();
+
+    long getFailedFiles();
+
+    long getDeletedFiles();
+
+    long getRetries();
+
+    long getCacheHits();
+
+    long getDeltaPatches();
+
+    /**
+     * Returns result of the last update check or update.
+     *
+     * @return result name or null if none finished yet
+     */
+    String getLastResult();
+}
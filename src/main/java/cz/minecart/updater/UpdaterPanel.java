@@ -19,6 +19,7 @@ import java.awt.BorderLayout;
 import java.awt.CardLayout;
 import java.io.File;
 import java.io.IOException;
+import java.text.MessageFormat;
 import java.util.ResourceBundle;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -27,6 +28,7 @@ import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import java.util.logging.StreamHandler;
 import javax.swing.JFileChooser;
+import javax.swing.SwingUtilities;
 import javax.swing.event.HyperlinkEvent;
 import javax.swing.event.HyperlinkListener;
 import javax.swing.filechooser.FileFilter;
@@ -38,11 +40,14 @@ import javax.swing.filechooser.FileFilter;
  */
 public class UpdaterPanel extends javax.swing.JPanel implements HyperlinkListener {
 
+    private static final long KILOBYTE = 1024;
+
     private final ResourceBundle resourceBundle = ResourceBundle.getBundle("cz/minecart/updater/resources/UpdaterPanel");
 
     private AnimatedBanner banner;
     private final Updater updater = new Updater();
     private static Logger mainLogger = Logger.getLogger(UpdaterPanel.class.getName());
+    private boolean modsDirectoryModified = false;
 
     public UpdaterPanel() {
         initComponents();
@@ -57,6 +62,17 @@ public class UpdaterPanel extends javax.swing.JPanel implements HyperlinkListene
                 UpdaterPanel.this.log(level, message);
             }
         });
+        updater.setModsDirectoryListener(new ModsDirectoryWatcher.ChangeListener() {
+            @Override
+            public void modsDirectoryChanged(File modsDirectory, final String fileName) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        reportModsDirectoryModified(fileName);
+                    }
+                });
+            }
+        });
         updater.init();
         newsTextPane.addHyperlinkListener(this);
 
@@ -93,88 +109,116 @@ public class UpdaterPanel extends javax.swing.JPanel implements HyperlinkListene
                 profilePathLabel.setText(resourceBundle.getString("profilePathLabel.textPrefix") + updater.getProfileName() + resourceBundle.getString("profilePathLabel.textPostfix"));
                 banner.setVersion(resourceBundle.getString("bannerApplicationVersion") + updater.getApplicationVersion());
 
-                // Load news content
-                Updater.LoadNewsResult newsContentResult = updater.loadNewsContent();
-                if (newsContentResult == Updater.LoadNewsResult.OK) {
-                    newsTextPane.setText(updater.getNewsContent());
+                // Load news and check for updates concurrently
+                UpdateCheck updateCheck = UpdateCheck.start(updater, new UpdateCheck.NewsListener() {
+                    @Override
+                    public void newsLoaded(Updater.LoadNewsResult result) {
+                        if (result == Updater.LoadNewsResult.OK) {
+                            SwingUtilities.invokeLater(new Runnable() {
+                                @Override
+                                public void run() {
+                                    newsTextPane.setText(updater.getNewsContent());
+                                }
+                            });
+                        }
+                    }
+                });
+                try {
+                    processUpdateCheck(updateCheck);
+                } catch (InterruptedException ex) {
+                    updateCheck.cancel();
+                    Thread.currentThread().interrupt();
                 }
+                checkUpdateButton.setEnabled(true);
+            }
+        });
+
+        updateThread.start();
+    }
 
-                // Check for application update
-                Updater.CheckAppUpdateResult appUpdate = updater.checkForAppUpdate();
-                switch (appUpdate) {
+    private void processUpdateCheck(UpdateCheck updateCheck) throws InterruptedException {
+        // Check for application update
+        Updater.CheckAppUpdateResult appUpdate = updateCheck.getAppUpdateResult();
+        switch (appUpdate) {
+            case UPDATE_FOUND: {
+                ((CardLayout) controlPanel.getLayout()).show(controlPanel, "newApp");
+                break;
+            }
+            case NOT_FOUND:
+            case CONNECTION_ISSUE: {
+                connectionIssues();
+                break;
+            }
+            case NO_UPDATE_AVAILABLE: {
+                Updater.UpdatePlan updatePlan = updateCheck.getModsUpdatePlan();
+                switch (updatePlan.resultType) {
                     case UPDATE_FOUND: {
-                        ((CardLayout) controlPanel.getLayout()).show(controlPanel, "newApp");
-                        break;
-                    }
-                    case NOT_FOUND:
-                    case CONNECTION_ISSUE: {
-                        connectionIssues();
-                        break;
-                    }
-                    case NO_UPDATE_AVAILABLE: {
-                        Updater.UpdatePlan updatePlan = updater.checkForModsUpdate();
-                        switch (updatePlan.resultType) {
-                            case UPDATE_FOUND: {
-                                ((CardLayout) controlPanel.getLayout()).show(controlPanel, "update");
-                                Updater.ModsUpdateResult modsUpdateResult = updater.performModsUpdate(updatePlan, new Updater.UpdatePlanObserver() {
-                                    @Override
-                                    public void reportProgress(boolean indeterminate, int progress) {
-                                        updateProgressBar.setIndeterminate(indeterminate);
-                                        updateProgressBar.setValue(progress);
-                                        updateProgressBar.repaint();
-                                    }
-                                });
-
-                                switch (modsUpdateResult) {
-                                    case DOWNLOAD_ERROR: {
-                                        connectionIssues();
-                                        break;
-                                    }
-                                    case UPDATE_OK: {
-                                        actionSucessful(resourceBundle.getString("updateSuccessful"));
-                                        break;
-                                    }
-                                }
-                                break;
-                            }
-                            case NOT_FOUND:
-                            case NO_CONNECTION:
-                            case CONNECTION_ISSUE: {
+                        ((CardLayout) controlPanel.getLayout()).show(controlPanel, "update");
+                        Updater.ModsUpdateResult modsUpdateResult = updater.performModsUpdate(updatePlan, new ProgressBarObserver());
+
+                        switch (modsUpdateResult) {
+                            case DOWNLOAD_ERROR: {
                                 connectionIssues();
                                 break;
                             }
-                            case NO_UPDATE_AVAILABLE: {
-                                actionSucessful(resourceBundle.getString("updateNotNeeded"));
-                                break;
-                            }
-                            case NO_TARGET_DIRECTORY: {
-                                actionFailed(updatePlan.errorMessage == null ? resourceBundle.getString("updateErrorProfilePathInvalid") : updatePlan.errorMessage);
-                                break;
-                            }
-                            case NO_TARGET_MOD_DIRECTORY: {
-                                actionFailed(resourceBundle.getString("updateErrorProfileNotFound"));
+                            case UPDATE_OK: {
+                                actionSucessful(resourceBundle.getString("updateSuccessful"));
                                 break;
                             }
-                            default: {
-                                actionFailed(resourceBundle.getString("updateErrorCheckFailed"));
+                            case INSTALL_ERROR: {
+                                actionFailed(resourceBundle.getString("updateErrorInstallFailed"));
                                 break;
                             }
                         }
-
                         break;
                     }
-
+                    case NOT_FOUND:
+                    case NO_CONNECTION:
+                    case CONNECTION_ISSUE: {
+                        connectionIssues();
+                        break;
+                    }
+                    case NO_UPDATE_AVAILABLE: {
+                        actionSucessful(resourceBundle.getString("updateNotNeeded"));
+                        break;
+                    }
+                    case NO_TARGET_DIRECTORY: {
+                        actionFailed(updatePlan.errorMessage == null ? resourceBundle.getString("updateErrorProfilePathInvalid") : updatePlan.errorMessage);
+                        break;
+                    }
+                    case NO_TARGET_MOD_DIRECTORY: {
+                        actionFailed(resourceBundle.getString("updateErrorProfileNotFound"));
+                        break;
+                    }
                     default: {
-                        errorIconLabel.setText(resourceBundle.getString("updateErrorUnknown"));
-                        ((CardLayout) controlPanel.getLayout()).show(controlPanel, "error");
+                        actionFailed(resourceBundle.getString("updateErrorCheckFailed"));
                         break;
                     }
                 }
-                checkUpdateButton.setEnabled(true);
+
+                break;
             }
-        });
 
-        updateThread.start();
+            default: {
+                errorIconLabel.setText(resourceBundle.getString("updateErrorUnknown"));
+                ((CardLayout) controlPanel.getLayout()).show(controlPanel, "error");
+                break;
+            }
+        }
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < KILOBYTE) {
+            return bytes + " B";
+        }
+        if (bytes < KILOBYTE * KILOBYTE) {
+            return String.format("%.1f kB", bytes / (double) KILOBYTE);
+        }
+        return String.format("%.1f MB", bytes / (double) (KILOBYTE * KILOBYTE));
+    }
+
+    private static String formatDuration(long seconds) {
+        return String.format("%d:%02d", seconds / 60, seconds % 60);
     }
 
     private void actionSucessful(String okMessage) {
@@ -193,6 +237,21 @@ public class UpdaterPanel extends javax.swing.JPanel implements HyperlinkListene
         ((CardLayout) controlPanel.getLayout()).show(controlPanel, "warning");
     }
 
+    /**
+     * Suggests new check when mods directory was modified after last check.
+     *
+     * @param fileName name of modified file or null
+     */
+    private void reportModsDirectoryModified(String fileName) {
+        if (modsDirectoryModified || !checkUpdateButton.isEnabled()) {
+            return;
+        }
+
+        modsDirectoryModified = true;
+        log(Level.WARNING, resourceBundle.getString("modsDirectoryModified") + (fileName == null ? "" : fileName));
+        actionFailed(resourceBundle.getString("modsDirectoryModifiedWarning"));
+    }
+
     private void connectionIssues() {
         actionFailed("Došlo k problému s připojením");
     }
@@ -216,6 +275,7 @@ public class UpdaterPanel extends javax.swing.JPanel implements HyperlinkListene
         updater.setRunCommandAuto(runCommandCheckBox.isSelected());
 
         updater.saveConfiguration();
+        updater.writeMetricsReport();
     }
 
     private void registerLogger() {
@@ -752,6 +812,7 @@ public class UpdaterPanel extends javax.swing.JPanel implements HyperlinkListene
 
     private void checkUpdateButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_checkUpdateButtonActionPerformed
         checkUpdateButton.setEnabled(false);
+        modsDirectoryModified = false;
         ((CardLayout) controlPanel.getLayout()).show(controlPanel, "checking");
         Logger.getLogger(UpdaterPanel.class.getName()).log(Level.INFO, resourceBundle.getString("updateRecheck"));
         performUpdate();
@@ -790,6 +851,70 @@ public class UpdaterPanel extends javax.swing.JPanel implements HyperlinkListene
         }
     }
 
+    /**
+     * Shows progress of mods update in progress bar.
+     *
+     * Progress of transferred bytes is preferred to count of files when size
+     * of transferred data is known.
+     */
+    private class ProgressBarObserver implements Updater.TransferProgressObserver {
+
+        private volatile boolean bytesProgressKnown = false;
+        private volatile String currentFile = null;
+
+        @Override
+        public void reportProgress(boolean indeterminate, int progress) {
+            if (indeterminate) {
+                updateProgressBar.setStringPainted(false);
+            } else if (bytesProgressKnown) {
+                return;
+            }
+            updateProgressBar.setIndeterminate(indeterminate);
+            updateProgressBar.setValue(progress);
+            updateProgressBar.repaint();
+        }
+
+        @Override
+        public void reportTransferProgress(TransferProgress progress) {
+            final int value = progress.getProgress();
+            if (value >= 0) {
+                bytesProgressKnown = true;
+            }
+
+            long expectedBytes = progress.getExpectedBytes();
+            long remainingSeconds = progress.getRemainingSeconds();
+            String transferred = formatBytes(progress.getTransferredBytes()) + (expectedBytes < 0 ? "" : " / " + formatBytes(expectedBytes));
+            String text = transferred;
+            if (remainingSeconds >= 0) {
+                text = MessageFormat.format(resourceBundle.getString("transferProgress.estimateFormat"), transferred, formatBytes(progress.getBytesPerSecond()), formatDuration(remainingSeconds));
+            }
+            String file = currentFile;
+            final String progressText = file == null ? text : file + ": " + text;
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if (updateProgressBar.isIndeterminate()) {
+                        return;
+                    }
+                    if (value >= 0) {
+                        updateProgressBar.setValue(value);
+                    }
+                    updateProgressBar.setStringPainted(true);
+                    updateProgressBar.setString(progressText);
+                }
+            });
+        }
+
+        @Override
+        public void reportFileState(String file, TransferProgress.FileState state) {
+            if (state == TransferProgress.FileState.DOWNLOADING) {
+                currentFile = file;
+            } else if (file.equals(currentFile)) {
+                currentFile = null;
+            }
+        }
+    }
+
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JButton checkUpdateButton;
     private javax.swing.JLabel checkingIconLabel;
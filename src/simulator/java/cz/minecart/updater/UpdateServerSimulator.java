@@ -0,0 +1,535 @@
+/*
+ * Copyright 2017 Minecart Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.minecart.updater;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local update server serving generated modpack with injected faults.
+ *
+ * Server provides news, application version, list of mods and mod files
+ * the same way as the real server. Responses can be delayed, limited in
+ * total transfer rate, dropped before response, truncated in the middle
+ * of body or replaced by bursts of server errors. Faults are chosen by
+ * random generator with given seed, so that runs can be repeated.
+ *
+ * Updater is pointed to the server by configuration file written by
+ * {@link #writeServerConfiguration(File)} and passed in system property
+ * {@link Updater#SERVER_CONFIGURATION_PROPERTY} or by
+ * {@link Updater#setServerConfigurationOverride(Properties)}.
+ *
+ * @author Minecart team
+ */
+public class UpdateServerSimulator {
+
+    public static final int DEFAULT_MODS_COUNT = 20;
+    public static final int DEFAULT_MOD_SIZE = 256 * 1024;
+    public static final String DEFAULT_CONFIG_FILE_NAME = "simulator-server.properties";
+
+    private static final String NEWS_PATH = "/news";
+    private static final String UPDATE_PATH = "/update";
+    private static final String FILES_PATH = "/files";
+    private static final String MODS_PATH = "/mods/";
+    private static final int THREADS_COUNT = 32;
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final int port;
+    private final Random random;
+    private HttpServer httpServer;
+    private ExecutorService executor;
+
+    private volatile Modpack modpack;
+    private volatile String applicationVersion = "0.0.0";
+    private volatile long latency = 0;
+    private volatile BandwidthLimiter bandwidthLimiter = null;
+    private volatile double dropRate = 0;
+    private volatile double truncateRate = 0;
+    private volatile double errorBurstRate = 0;
+    private volatile int errorBurstLength = 1;
+    private int remainingErrors = 0;
+
+    private final AtomicLong requestsCount = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong truncatedCount = new AtomicLong();
+    private final AtomicLong errorsCount = new AtomicLong();
+
+    /**
+     * Creates server with generated modpack of default size.
+     *
+     * @param port HTTP port or 0 for any free port
+     * @param seed seed of random generator of content and faults
+     */
+    public UpdateServerSimulator(int port, long seed) {
+        this.port = port;
+        random = new Random(seed);
+        generateModpack(DEFAULT_MODS_COUNT, DEFAULT_MOD_SIZE, seed);
+    }
+
+    /**
+     * Starts serving on loopback interface.
+     *
+     * @throws IOException if port cannot be bound
+     */
+    public void start() throws IOException {
+        executor = Executors.newFixedThreadPool(THREADS_COUNT, new ServerThreadFactory());
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleRequest(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        httpServer.setExecutor(executor);
+        httpServer.start();
+    }
+
+    public void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns base URL of running server.
+     *
+     * @return URL without trailing slash
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + httpServer.getAddress().getPort();
+    }
+
+    /**
+     * Replaces served modpack by newly generated one.
+     *
+     * Sizes of files vary from half to one and half of given size.
+     * Modpack generated with the same parameters has the same content.
+     *
+     * @param modsCount count of mod files
+     * @param modSize average size of mod file in bytes
+     * @param seed seed of random generator of content
+     */
+    public final void generateModpack(int modsCount, int modSize, long seed) {
+        Random contentRandom = new Random(seed);
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        StringBuilder manifest = new StringBuilder(ModsManifest.HEADER_PREFIX + ModsManifest.CURRENT_VERSION + "\n");
+        for (int i = 0; i < modsCount; i++) {
+            String name = "mod-" + i + ".jar";
+            byte[] content = new byte[modSize / 2 + (modSize > 0 ? contentRandom.nextInt(modSize) : 0)];
+            contentRandom.nextBytes(content);
+            files.put(name.toLowerCase(), content);
+            String hash = Checksums.toHex(Checksums.createSha256Digest().digest(content));
+            manifest.append(name).append('\t').append(content.length).append('\t').append(hash).append('\n');
+        }
+
+        String news = "<html><body><h1>Simulated modpack " + seed + "</h1><p>" + modsCount + " mods</p></body></html>";
+        modpack = new Modpack(Collections.unmodifiableMap(files), toBytes(manifest.toString()), toBytes(news));
+    }
+
+    public void setApplicationVersion(String applicationVersion) {
+        this.applicationVersion = applicationVersion;
+    }
+
+    /**
+     * Sets delay before each response.
+     *
+     * @param latency delay in milliseconds
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Sets limit of total transfer rate shared by all responses.
+     *
+     * @param bytesPerSecond rate in bytes per second or 0 for no limit
+     */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        bandwidthLimiter = bytesPerSecond > 0 ? new BandwidthLimiter(bytesPerSecond) : null;
+    }
+
+    /**
+     * Sets probability of closing connection without response.
+     *
+     * @param dropRate probability from 0 to 1
+     */
+    public void setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    /**
+     * Sets probability of closing connection in the middle of body.
+     *
+     * @param truncateRate probability from 0 to 1
+     */
+    public void setTruncateRate(double truncateRate) {
+        this.truncateRate = truncateRate;
+    }
+
+    /**
+     * Sets server errors returned in bursts.
+     *
+     * @param errorBurstRate probability that request starts burst
+     * @param errorBurstLength count of requests failing in single burst
+     */
+    public void setErrorBursts(double errorBurstRate, int errorBurstLength) {
+        this.errorBurstRate = errorBurstRate;
+        this.errorBurstLength = Math.max(1, errorBurstLength);
+    }
+
+    public long getRequestsCount() {
+        return requestsCount.get();
+    }
+
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getTruncatedCount() {
+        return truncatedCount.get();
+    }
+
+    public long getErrorsCount() {
+        return errorsCount.get();
+    }
+
+    /**
+     * Returns server configuration properties pointing to this server.
+     *
+     * @return server configuration
+     */
+    public Properties getServerConfiguration() {
+        String baseUrl = getBaseUrl();
+        Properties serverConfiguration = new Properties();
+        serverConfiguration.setProperty("news_url", baseUrl + NEWS_PATH);
+        serverConfiguration.setProperty("update_url", baseUrl + UPDATE_PATH);
+        serverConfiguration.setProperty("update_files_url", baseUrl + FILES_PATH);
+        serverConfiguration.setProperty("update_files_legacy_url", "");
+        serverConfiguration.setProperty("update_forge_url", baseUrl + "/forge");
+        serverConfiguration.setProperty("update_download_url", baseUrl);
+        serverConfiguration.setProperty("download_laucher_url", baseUrl + "/");
+        serverConfiguration.setProperty("website_url", baseUrl);
+        serverConfiguration.setProperty("update_download_mirrors", "");
+        serverConfiguration.setProperty("update_download_probe_path", "");
+        return serverConfiguration;
+    }
+
+    /**
+     * Writes server configuration file pointing to this server.
+     *
+     * @param configFile target file
+     * @throws IOException if writing fails
+     */
+    public void writeServerConfiguration(File configFile) throws IOException {
+        try (OutputStream configOutput = new FileOutputStream(configFile)) {
+            getServerConfiguration().store(configOutput, "Minecart Updater Simulator");
+        }
+    }
+
+    public String getStatistics() {
+        return "requests " + requestsCount.get() + " bytes " + sentBytes.get() + " dropped " + droppedCount.get() + " truncated " + truncatedCount.get() + " errors " + errorsCount.get();
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        requestsCount.incrementAndGet();
+        if (latency > 0) {
+            sleep(latency);
+        }
+
+        Fault fault = nextFault();
+        if (fault == Fault.ERROR) {
+            errorsCount.incrementAndGet();
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_UNAVAILABLE, -1);
+            return;
+        }
+        if (fault == Fault.DROP) {
+            // Exchange is closed without response
+            droppedCount.incrementAndGet();
+            return;
+        }
+
+        Modpack currentModpack = modpack;
+        String path = exchange.getRequestURI().getPath();
+        byte[] content;
+        String contentType = "application/octet-stream";
+        if (NEWS_PATH.equals(path)) {
+            content = currentModpack.news;
+            contentType = "text/html; charset=UTF-8";
+        } else if (UPDATE_PATH.equals(path)) {
+            content = toBytes(applicationVersion + "\n");
+            contentType = "text/plain; charset=UTF-8";
+        } else if (FILES_PATH.equals(path)) {
+            content = currentModpack.manifest;
+            contentType = "text/plain; charset=UTF-8";
+        } else if (path.startsWith(MODS_PATH)) {
+            content = currentModpack.files.get(path.substring(MODS_PATH.length()).toLowerCase());
+        } else {
+            content = null;
+        }
+        if (content == null) {
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+            return;
+        }
+
+        sendContent(exchange, content, contentType, fault == Fault.TRUNCATE);
+    }
+
+    private void sendContent(HttpExchange exchange, byte[] content, String contentType, boolean truncate) throws IOException {
+        int offset = parseRangeStart(exchange.getRequestHeaders().getFirst("Range"));
+        int responseCode = HttpURLConnection.HTTP_OK;
+        if (offset > 0 && offset < content.length) {
+            responseCode = HttpURLConnection.HTTP_PARTIAL;
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + offset + "-" + (content.length - 1) + "/" + content.length);
+        } else {
+            offset = 0;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(responseCode, -1);
+            return;
+        }
+
+        exchange.sendResponseHeaders(responseCode, content.length - offset);
+        int end = truncate ? offset + (content.length - offset) / 2 : content.length;
+        if (truncate) {
+            truncatedCount.incrementAndGet();
+        }
+        OutputStream output = exchange.getResponseBody();
+        for (int position = offset; position < end; position += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, end - position);
+            BandwidthLimiter limiter = bandwidthLimiter;
+            if (limiter != null) {
+                limiter.acquire(length);
+            }
+            output.write(content, position, length);
+            sentBytes.addAndGet(length);
+        }
+        if (!truncate) {
+            output.close();
+        }
+    }
+
+    private synchronized Fault nextFault() {
+        if (remainingErrors > 0) {
+            remainingErrors--;
+            return Fault.ERROR;
+        }
+        if (errorBurstRate > 0 && random.nextDouble() < errorBurstRate) {
+            remainingErrors = errorBurstLength - 1;
+            return Fault.ERROR;
+        }
+        if (dropRate > 0 && random.nextDouble() < dropRate) {
+            return Fault.DROP;
+        }
+        if (truncateRate > 0 && random.nextDouble() < truncateRate) {
+            return Fault.TRUNCATE;
+        }
+
+        return Fault.NONE;
+    }
+
+    private static int parseRangeStart(String range) {
+        if (range == null || !range.startsWith("bytes=") || !range.endsWith("-")) {
+            return 0;
+        }
+
+        try {
+            return Integer.parseInt(range.substring(6, range.length() - 1).trim());
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private static void sleep(long delay) throws InterruptedIOException {
+        try {
+            TimeUnit.MILLISECONDS.sleep(delay);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static byte[] toBytes(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Runs simulator until process is terminated.
+     *
+     * @param args command line arguments
+     * @throws Exception if server cannot be started
+     */
+    public static void main(String[] args) throws Exception {
+        int port = 0;
+        long seed = 1;
+        int modsCount = DEFAULT_MODS_COUNT;
+        int modSize = DEFAULT_MOD_SIZE;
+        String configFileName = DEFAULT_CONFIG_FILE_NAME;
+        long latency = 0;
+        long bandwidthLimit = 0;
+        double dropRate = 0;
+        double truncateRate = 0;
+        double errorBurstRate = 0;
+        int errorBurstLength = 1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--port": {
+                    port = Integer.parseInt(value);
+                    break;
+                }
+                case "--seed": {
+                    seed = Long.parseLong(value);
+                    break;
+                }
+                case "--mods": {
+                    modsCount = Integer.parseInt(value);
+                    break;
+                }
+                case "--mod-size": {
+                    modSize = Integer.parseInt(value);
+                    break;
+                }
+                case "--config": {
+                    configFileName = value;
+                    break;
+                }
+                case "--latency": {
+                    latency = Long.parseLong(value);
+                    break;
+                }
+                case "--bandwidth": {
+                    bandwidthLimit = Long.parseLong(value) * 1024;
+                    break;
+                }
+                case "--drop": {
+                    dropRate = Double.parseDouble(value);
+                    break;
+                }
+                case "--truncate": {
+                    truncateRate = Double.parseDouble(value);
+                    break;
+                }
+                case "--error-burst": {
+                    String[] burst = value.split(":");
+                    errorBurstRate = Double.parseDouble(burst[0]);
+                    errorBurstLength = burst.length > 1 ? Integer.parseInt(burst[1]) : 1;
+                    break;
+                }
+                default: {
+                    System.err.println("usage [--port <port>] [--seed <seed>] [--mods <count>] [--mod-size <bytes>] [--config <file>]"
+                            + " [--latency <ms>] [--bandwidth <kB/s>] [--drop <rate>] [--truncate <rate>] [--error-burst <rate>[:<length>]]");
+                    System.exit(1);
+                }
+            }
+        }
+
+        final UpdateServerSimulator simulator = new UpdateServerSimulator(port, seed);
+        simulator.generateModpack(modsCount, modSize, seed);
+        simulator.setLatency(latency);
+        simulator.setBandwidthLimit(bandwidthLimit);
+        simulator.setDropRate(dropRate);
+        simulator.setTruncateRate(truncateRate);
+        simulator.setErrorBursts(errorBurstRate, errorBurstLength);
+        simulator.start();
+
+        File configFile = new File(configFileName).getAbsoluteFile();
+        simulator.writeServerConfiguration(configFile);
+        System.out.println("serving " + simulator.getBaseUrl());
+        System.out.println("config -D" + Updater.SERVER_CONFIGURATION_PROPERTY + "=" + configFile.getPath());
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                System.out.println(simulator.getStatistics());
+            }
+        }));
+
+        while (true) {
+            Thread.sleep(Long.MAX_VALUE);
+        }
+    }
+
+    private static enum Fault {
+        NONE, ERROR, DROP, TRUNCATE
+    }
+
+    /**
+     * Served content, replaced as a whole.
+     */
+    private static class Modpack {
+
+        public Modpack(Map<String, byte[]> files, byte[] manifest, byte[] news) {
+            this.files = files;
+            this.manifest = manifest;
+            this.news = news;
+        }
+
+        final Map<String, byte[]> files;
+        final byte[] manifest;
+        final byte[] news;
+    }
+
+    private static class ServerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadIndex = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "simulator-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}